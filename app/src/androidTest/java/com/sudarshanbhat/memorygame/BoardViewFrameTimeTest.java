@@ -0,0 +1,132 @@
+package com.sudarshanbhat.memorygame;
+
+import android.test.ActivityInstrumentationTestCase2;
+import android.util.Log;
+import android.view.ViewGroup;
+
+import com.sudarshanbhat.memorygame.core.FlickrPhoto;
+import com.sudarshanbhat.memorygame.core.GameBoard;
+
+import java.util.ArrayList;
+import java.util.Random;
+
+/**
+ * Frame times of the board's phase changes on a device: every tile of an 8x8 board
+ * fading to hidden as the quiz starts, and tiles revealed one after another as they
+ * are guessed. Logs each run's frames under the FrameTimer tag and fails on a dropped
+ * frame. Run with ./gradlew connectedAndroidTest.
+ *
+ * The photo urls point nowhere, so tiles draw their backgrounds and hidden drawable
+ * without photos.
+ */
+public class BoardViewFrameTimeTest extends ActivityInstrumentationTestCase2<GameActivity> {
+
+    private static final String TAG = "FrameTimer";
+    private static final int BOARD_SIZE = 8;
+    private static final int TILE_COUNT = BOARD_SIZE * BOARD_SIZE;
+
+    private BoardView mBoardView;
+
+    public BoardViewFrameTimeTest() {
+        super(GameActivity.class);
+    }
+
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        final GameActivity activity = getActivity();
+        getInstrumentation().runOnMainSync(new Runnable() {
+            @Override
+            public void run() {
+                ArrayList<FlickrPhoto> photos = new ArrayList<FlickrPhoto>();
+                for (int i = 0; i < TILE_COUNT; i++) {
+                    photos.add(new FlickrPhoto("Photo " + i, "http://127.0.0.1/" + i, "http://127.0.0.1/" + i + ".jpg"));
+                }
+
+                int tileSize = activity.getResources().getDisplayMetrics().widthPixels / (BOARD_SIZE + 1);
+                mBoardView = new BoardView(activity);
+                activity.addContentView(mBoardView, new ViewGroup.LayoutParams(
+                        ViewGroup.LayoutParams.WRAP_CONTENT, ViewGroup.LayoutParams.WRAP_CONTENT));
+                mBoardView.setBoard(photos, new GameBoard(TILE_COUNT, new Random(1)), BOARD_SIZE, tileSize);
+            }
+        });
+        getInstrumentation().waitForIdleSync();
+    }
+
+
+    public void testHidingAllTilesDropsNoFrames() throws Exception {
+        FrameTimer timer = measure("hideAllTiles", new Runnable() {
+            @Override
+            public void run() {
+                mBoardView.hideAllTiles();
+            }
+        });
+
+        assertTrue(timer.getFrameCount() > 0);
+        assertEquals(0, timer.getDroppedCount());
+    }
+
+
+    public void testRevealingTilesDropsNoFrames() throws Exception {
+        getInstrumentation().runOnMainSync(new Runnable() {
+            @Override
+            public void run() {
+                mBoardView.hideAllTiles();
+            }
+        });
+        Thread.sleep(animationMillis());
+
+        // A correct guess every couple of frames, faster than anyone plays
+        for (int row = 0; row < BOARD_SIZE; row++) {
+            final int first = row * BOARD_SIZE;
+            FrameTimer timer = measure("revealTile row " + row, new Runnable() {
+                @Override
+                public void run() {
+                    for (int i = 0; i < BOARD_SIZE; i++) {
+                        final int position = first + i;
+                        mBoardView.postDelayed(new Runnable() {
+                            @Override
+                            public void run() {
+                                mBoardView.revealTile(position);
+                            }
+                        }, i * 32);
+                    }
+                }
+            });
+
+            assertEquals(0, timer.getDroppedCount());
+        }
+    }
+
+
+    // Runs the transition on the main thread and measures its frames until it is over
+    private FrameTimer measure(final String name, final Runnable transition) throws Exception {
+        final FrameTimer[] timer = new FrameTimer[1];
+        getInstrumentation().runOnMainSync(new Runnable() {
+            @Override
+            public void run() {
+                timer[0] = FrameTimer.start("BoardViewFrameTimeTest." + name);
+                transition.run();
+            }
+        });
+
+        Thread.sleep(animationMillis() + BOARD_SIZE * 32);
+        getInstrumentation().runOnMainSync(new Runnable() {
+            @Override
+            public void run() {
+                timer[0].stop();
+            }
+        });
+
+        Log.i(TAG, name + ": " + timer[0].getFrameCount() + " frames, max "
+                + (timer[0].getMaxIntervalNanos() / 1000) + "us, dropped " + timer[0].getDroppedCount());
+        return timer[0];
+    }
+
+
+    // Tile animations, with room for the last frames to come in
+    private long animationMillis() {
+        return getActivity().getResources().getInteger(android.R.integer.config_shortAnimTime) + 100;
+    }
+}
@@ -0,0 +1,108 @@
+package com.sudarshanbhat.memorygame;
+
+import android.graphics.Bitmap;
+import android.os.Handler;
+import android.os.Looper;
+import android.test.AndroidTestCase;
+
+import com.sudarshanbhat.memorygame.core.FlickrPhoto;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Batches of the look ahead lane, as GameHelperFragment schedules the next board.
+ * The next board is marked ready only if its batch comes back with no failed photo,
+ * so a batch whose photos all load must never report one as failed. Look ahead
+ * workers run at the lowest thread priority, which is where the main thread used to
+ * overtake them and count a photo before its result was set.
+ */
+public class PhotoPrefetcherTest extends AndroidTestCase {
+
+    private static final int BOARD_SIZE = 8;
+    private static final int TILE_COUNT = BOARD_SIZE * BOARD_SIZE;
+    private static final int ROUNDS = 20;
+
+    private Bitmap mBitmap;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mBitmap = Bitmap.createBitmap(1, 1, Bitmap.Config.RGB_565);
+    }
+
+
+    public void testNextBoardWhosePhotosAllLoadIsReady() throws Exception {
+        PhotoPrefetcher prefetcher = newLookAheadPrefetcher(new PhotoPrefetcher.PhotoLoader() {
+            @Override
+            public Bitmap loadPhoto(FlickrPhoto photo, int targetWidth, int targetHeight, boolean lookAhead) {
+                return mBitmap;
+            }
+        });
+
+        for (int round = 0; round < ROUNDS; round++) {
+            PhotoPrefetcher.PrefetchResult result = prefetch(prefetcher, photos());
+
+            assertFalse("Round " + round + " failed " + result.failed.size(), result.isPartial());
+            assertEquals(TILE_COUNT, result.loaded.size());
+        }
+    }
+
+
+    public void testNextBoardWithAFailedPhotoIsPartial() throws Exception {
+        final List<FlickrPhoto> photos = photos();
+        PhotoPrefetcher prefetcher = newLookAheadPrefetcher(new PhotoPrefetcher.PhotoLoader() {
+            @Override
+            public Bitmap loadPhoto(FlickrPhoto photo, int targetWidth, int targetHeight, boolean lookAhead) {
+                return photo == photos.get(3) ? null : mBitmap;
+            }
+        });
+
+        PhotoPrefetcher.PrefetchResult result = prefetch(prefetcher, photos);
+
+        assertTrue(result.isPartial());
+        assertEquals(1, result.failed.size());
+        assertSame(photos.get(3), result.failed.get(0));
+        assertEquals(TILE_COUNT - 1, result.loaded.size());
+    }
+
+
+    private PhotoPrefetcher newLookAheadPrefetcher(PhotoPrefetcher.PhotoLoader loader) {
+        return new PhotoPrefetcher(loader, PhotoLoadScheduler.getInstance(), PhotoLoadScheduler.PRIORITY_LOOK_AHEAD);
+    }
+
+
+    // Starts the batch on the main thread, as the app does, and waits for its result
+    private PhotoPrefetcher.PrefetchResult prefetch(final PhotoPrefetcher prefetcher, final List<FlickrPhoto> photos)
+            throws Exception {
+        final PhotoPrefetcher.PrefetchResult[] result = new PhotoPrefetcher.PrefetchResult[1];
+        final CountDownLatch delivered = new CountDownLatch(1);
+        new Handler(Looper.getMainLooper()).post(new Runnable() {
+            @Override
+            public void run() {
+                prefetcher.prefetch(photos, 100, 100, new PhotoPrefetcher.PrefetchListener() {
+                    @Override
+                    public void onPrefetchComplete(PhotoPrefetcher.PrefetchResult prefetchResult) {
+                        result[0] = prefetchResult;
+                        delivered.countDown();
+                    }
+                });
+            }
+        });
+
+        // A batch that times out is delivered too, with the photos still loading as failed
+        assertTrue(delivered.await(PhotoPrefetcher.DEFAULT_BATCH_TIMEOUT_MS + 1000, TimeUnit.MILLISECONDS));
+        return result[0];
+    }
+
+
+    private static List<FlickrPhoto> photos() {
+        ArrayList<FlickrPhoto> photos = new ArrayList<FlickrPhoto>(TILE_COUNT);
+        for (int i = 0; i < TILE_COUNT; i++) {
+            photos.add(new FlickrPhoto("Photo " + i, "http://127.0.0.1/" + i, "http://127.0.0.1/" + i + ".jpg"));
+        }
+        return photos;
+    }
+}
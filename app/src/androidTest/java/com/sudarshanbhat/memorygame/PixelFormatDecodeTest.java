@@ -0,0 +1,96 @@
+package com.sudarshanbhat.memorygame;
+
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.test.AndroidTestCase;
+import android.util.Log;
+
+import java.io.ByteArrayOutputStream;
+import java.util.Random;
+
+/**
+ * Decode time and cache cost of a Flickr sized JPEG under each pixel format policy,
+ * decoded with the options FlickrPhotoCache uses for a board tile. Logs the numbers
+ * under the PixelFormat tag. Run with ./gradlew connectedAndroidTest.
+ *
+ * The photo is generated: a gradient with noise, so it neither compresses nor
+ * dithers unrealistically well.
+ */
+public class PixelFormatDecodeTest extends AndroidTestCase {
+
+    private static final String TAG = "PixelFormat";
+
+    // Flickr "m" size, and the tile size of a 3x3 board on a 720px wide screen
+    private static final int PHOTO_WIDTH = 500;
+    private static final int PHOTO_HEIGHT = 375;
+    private static final int TILE_SIZE = 240;
+
+    private static final int WARMUP_DECODES = 10;
+    private static final int DECODES = 50;
+
+    private byte[] mJpeg;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        int[] pixels = new int[PHOTO_WIDTH * PHOTO_HEIGHT];
+        Random random = new Random(1);
+        for (int y = 0; y < PHOTO_HEIGHT; y++) {
+            for (int x = 0; x < PHOTO_WIDTH; x++) {
+                int noise = random.nextInt(16);
+                int r = 255 * x / PHOTO_WIDTH;
+                int g = 255 * y / PHOTO_HEIGHT;
+                int b = Math.min(255, 128 + noise);
+                pixels[y * PHOTO_WIDTH + x] = 0xff000000 | (r << 16) | (g << 8) | b;
+            }
+        }
+
+        Bitmap photo = Bitmap.createBitmap(pixels, PHOTO_WIDTH, PHOTO_HEIGHT, Bitmap.Config.ARGB_8888);
+        ByteArrayOutputStream os = new ByteArrayOutputStream();
+        photo.compress(Bitmap.CompressFormat.JPEG, 85, os);
+        photo.recycle();
+        mJpeg = os.toByteArray();
+    }
+
+
+    public void testRgb565HalvesTheCostOfOpaquePhotos() {
+        Bitmap argb = decode(Bitmap.Config.ARGB_8888);
+        Bitmap rgb565 = decode(Bitmap.Config.RGB_565);
+
+        assertEquals(Bitmap.Config.RGB_565, rgb565.getConfig());
+        assertEquals(argb.getWidth(), rgb565.getWidth());
+        assertEquals(argb.getHeight(), rgb565.getHeight());
+        assertEquals(BitmapPool.getSize(argb), 2 * BitmapPool.getSize(rgb565));
+
+        long argbNanos = timeDecodes(Bitmap.Config.ARGB_8888);
+        long rgb565Nanos = timeDecodes(Bitmap.Config.RGB_565);
+        Log.i(TAG, mJpeg.length + " byte JPEG to " + argb.getWidth() + "x" + argb.getHeight()
+                + ": ARGB_8888 " + BitmapPool.getSize(argb) + " bytes, " + (argbNanos / 1000) + "us per decode; "
+                + "RGB_565 " + BitmapPool.getSize(rgb565) + " bytes, " + (rgb565Nanos / 1000) + "us per decode");
+    }
+
+
+    // Average over DECODES, after a few to warm up
+    private long timeDecodes(Bitmap.Config config) {
+        for (int i = 0; i < WARMUP_DECODES; i++) {
+            decode(config).recycle();
+        }
+
+        long startTime = System.nanoTime();
+        for (int i = 0; i < DECODES; i++) {
+            decode(config).recycle();
+        }
+        return (System.nanoTime() - startTime) / DECODES;
+    }
+
+
+    // Same options as FlickrPhotoCache.decodeBytesUntimed(), without the bitmap pool
+    private Bitmap decode(Bitmap.Config config) {
+        BitmapFactory.Options o = new BitmapFactory.Options();
+        o.inPreferredConfig = config;
+        o.inDither = config == Bitmap.Config.RGB_565;
+        o.inSampleSize = FlickrPhotoCache.calculateInSampleSize(PHOTO_WIDTH, PHOTO_HEIGHT, TILE_SIZE, TILE_SIZE);
+        o.inMutable = true;
+        return BitmapFactory.decodeByteArray(mJpeg, 0, mJpeg.length, o);
+    }
+}
@@ -0,0 +1,234 @@
+package com.sudarshanbhat.memorygame;
+
+import android.graphics.Bitmap;
+import android.os.Build;
+
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.TreeMap;
+
+/**
+ * Pool of mutable bitmaps that are no longer shown, so that their memory can be
+ * reused through BitmapFactory.Options.inBitmap instead of allocating a new bitmap
+ * for every decode.
+ *
+ * From KitKat any pooled bitmap with enough bytes can be reused, so bitmaps are
+ * bucketed by config and allocation size. Config is kept apart so that an RGB_565
+ * decode does not take a twice as large ARGB_8888 bitmap and lose its savings.
+ * Before KitKat only a bitmap of exactly the same dimensions and config can be
+ * reused, so bitmaps are bucketed by those.
+ */
+public class BitmapPool {
+
+    // Do not hand out a bitmap more than this many times bigger than what is needed
+    private static final int MAX_SIZE_MULTIPLE = 2;
+
+    private final boolean mReuseBySize = Build.VERSION.SDK_INT >= Build.VERSION_CODES.KITKAT;
+
+    private int mMaxSize;
+    private int mCurrentSize;
+
+    // Buckets by config, then allocation byte count (KitKat and above)
+    private final HashMap<Bitmap.Config, TreeMap<Integer, LinkedList<Bitmap>>> mSizeBuckets =
+            new HashMap<Bitmap.Config, TreeMap<Integer, LinkedList<Bitmap>>>();
+
+    // Buckets by width, height and config (below KitKat)
+    private final HashMap<String, LinkedList<Bitmap>> mExactBuckets = new HashMap<String, LinkedList<Bitmap>>();
+
+    // All pooled bitmaps, oldest first. Used to trim the pool.
+    private final LinkedList<Bitmap> mInsertionOrder = new LinkedList<Bitmap>();
+
+    private int mHitCount;
+    private int mMissCount;
+    private int mPutCount;
+    private int mEvictionCount;
+
+    public BitmapPool(int maxSizeInBytes) {
+        mMaxSize = maxSizeInBytes;
+    }
+
+
+    // Adds a bitmap that is no longer used anywhere. Immutable or recycled bitmaps are ignored.
+    public synchronized void put(Bitmap bitmap) {
+        if (bitmap == null || bitmap.isRecycled() || !bitmap.isMutable()) {
+            return;
+        }
+
+        int size = getSize(bitmap);
+        if (size > mMaxSize) {
+            return;
+        }
+
+        LinkedList<Bitmap> bucket;
+        if (mReuseBySize) {
+            TreeMap<Integer, LinkedList<Bitmap>> buckets = mSizeBuckets.get(bitmap.getConfig());
+            if (buckets == null) {
+                buckets = new TreeMap<Integer, LinkedList<Bitmap>>();
+                mSizeBuckets.put(bitmap.getConfig(), buckets);
+            }
+            bucket = buckets.get(size);
+            if (bucket == null) {
+                bucket = new LinkedList<Bitmap>();
+                buckets.put(size, bucket);
+            }
+        }
+        else {
+            String key = exactKey(bitmap.getWidth(), bitmap.getHeight(), bitmap.getConfig());
+            bucket = mExactBuckets.get(key);
+            if (bucket == null) {
+                bucket = new LinkedList<Bitmap>();
+                mExactBuckets.put(key, bucket);
+            }
+        }
+
+        bucket.add(bitmap);
+        mInsertionOrder.add(bitmap);
+        mCurrentSize += size;
+        mPutCount++;
+
+        trimToSize(mMaxSize);
+    }
+
+
+    // Returns a bitmap which can be passed as inBitmap to decode an image of the given
+    // size, or null if there is none. The returned bitmap is removed from the pool.
+    public synchronized Bitmap get(int width, int height, Bitmap.Config config) {
+        Bitmap bitmap = null;
+
+        if (mReuseBySize) {
+            int required = width * height * getBytesPerPixel(config);
+            TreeMap<Integer, LinkedList<Bitmap>> buckets = mSizeBuckets.get(config);
+            Integer size = buckets != null ? buckets.ceilingKey(required) : null;
+            if (size != null && size <= required * MAX_SIZE_MULTIPLE) {
+                bitmap = removeFromBucket(buckets.get(size));
+                if (buckets.get(size).isEmpty()) {
+                    buckets.remove(size);
+                }
+            }
+        }
+        else {
+            String key = exactKey(width, height, config);
+            LinkedList<Bitmap> bucket = mExactBuckets.get(key);
+            if (bucket != null) {
+                bitmap = removeFromBucket(bucket);
+                if (bucket.isEmpty()) {
+                    mExactBuckets.remove(key);
+                }
+            }
+        }
+
+        if (bitmap == null) {
+            mMissCount++;
+            return null;
+        }
+
+        mHitCount++;
+        mInsertionOrder.remove(bitmap);
+        mCurrentSize -= getSize(bitmap);
+        return bitmap;
+    }
+
+
+    public synchronized void clear() {
+        trimToSize(0);
+    }
+
+
+    public synchronized void setMaxSize(int maxSizeInBytes) {
+        mMaxSize = maxSizeInBytes;
+        trimToSize(mMaxSize);
+    }
+
+
+    public synchronized int getHitCount() {
+        return mHitCount;
+    }
+
+    public synchronized int getMissCount() {
+        return mMissCount;
+    }
+
+    public synchronized int getPutCount() {
+        return mPutCount;
+    }
+
+    public synchronized int getEvictionCount() {
+        return mEvictionCount;
+    }
+
+    public synchronized int getSize() {
+        return mCurrentSize;
+    }
+
+
+    @Override
+    public synchronized String toString() {
+        int accesses = mHitCount + mMissCount;
+        int hitPercent = accesses != 0 ? (100 * mHitCount / accesses) : 0;
+        return "BitmapPool[size=" + mCurrentSize + ",maxSize=" + mMaxSize
+                + ",hits=" + mHitCount + ",misses=" + mMissCount
+                + ",hitRate=" + hitPercent + "%,evictions=" + mEvictionCount + "]";
+    }
+
+
+    private void trimToSize(int maxSize) {
+        Iterator<Bitmap> iterator = mInsertionOrder.iterator();
+        while (mCurrentSize > maxSize && iterator.hasNext()) {
+            Bitmap bitmap = iterator.next();
+            iterator.remove();
+            removeFromBuckets(bitmap);
+            mCurrentSize -= getSize(bitmap);
+            mEvictionCount++;
+        }
+    }
+
+
+    private void removeFromBuckets(Bitmap bitmap) {
+        if (mReuseBySize) {
+            int size = getSize(bitmap);
+            TreeMap<Integer, LinkedList<Bitmap>> buckets = mSizeBuckets.get(bitmap.getConfig());
+            LinkedList<Bitmap> bucket = buckets != null ? buckets.get(size) : null;
+            if (bucket != null && bucket.remove(bitmap) && bucket.isEmpty()) {
+                buckets.remove(size);
+            }
+        }
+        else {
+            String key = exactKey(bitmap.getWidth(), bitmap.getHeight(), bitmap.getConfig());
+            LinkedList<Bitmap> bucket = mExactBuckets.get(key);
+            if (bucket != null && bucket.remove(bitmap) && bucket.isEmpty()) {
+                mExactBuckets.remove(key);
+            }
+        }
+    }
+
+
+    private static Bitmap removeFromBucket(LinkedList<Bitmap> bucket) {
+        return bucket.isEmpty() ? null : bucket.removeLast();
+    }
+
+
+    private static String exactKey(int width, int height, Bitmap.Config config) {
+        return width + "x" + height + ":" + config;
+    }
+
+
+    // Bytes held by the bitmap. On KitKat a reused bitmap can be larger than its pixels.
+    public static int getSize(Bitmap bitmap) {
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.KITKAT) {
+            return bitmap.getAllocationByteCount();
+        }
+        return bitmap.getRowBytes() * bitmap.getHeight();
+    }
+
+
+    private static int getBytesPerPixel(Bitmap.Config config) {
+        if (config == Bitmap.Config.RGB_565 || config == Bitmap.Config.ARGB_4444) {
+            return 2;
+        }
+        if (config == Bitmap.Config.ALPHA_8) {
+            return 1;
+        }
+        return 4;
+    }
+}
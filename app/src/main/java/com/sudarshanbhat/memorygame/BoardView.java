@@ -0,0 +1,562 @@
+package com.sudarshanbhat.memorygame;
+
+import android.animation.Animator;
+import android.animation.AnimatorListenerAdapter;
+import android.animation.ValueAnimator;
+import android.content.Context;
+import android.graphics.Bitmap;
+import android.graphics.Canvas;
+import android.graphics.Paint;
+import android.graphics.Rect;
+import android.graphics.drawable.Drawable;
+import android.os.Bundle;
+import android.support.v4.view.ViewCompat;
+import android.support.v4.view.accessibility.AccessibilityNodeInfoCompat;
+import android.support.v4.widget.ExploreByTouchHelper;
+import android.text.TextUtils;
+import android.util.AttributeSet;
+import android.view.KeyEvent;
+import android.view.MotionEvent;
+import android.view.SoundEffectConstants;
+import android.view.View;
+import android.view.accessibility.AccessibilityEvent;
+
+import com.sudarshanbhat.memorygame.core.FlickrPhoto;
+import com.sudarshanbhat.memorygame.core.GameBoard;
+
+import java.util.List;
+
+/**
+ * The board as a single view: draws every tile in one onDraw() from the cached
+ * bitmaps and hit-tests taps itself, instead of a GridView with an ImageView per
+ * tile. Each tile is a PhotoTarget of the photo cache. Revealing and hiding tiles
+ * cross-fades them on their own animators, redrawing only the board.
+ *
+ * Tiles are virtual views for accessibility services, which can read and click
+ * them one by one. The D-pad moves a focused tile within the board and clicks it
+ * with the center key. Main thread only.
+ */
+public class BoardView extends View {
+
+    public interface OnTileClickListener {
+        public void onTileClick(int position);
+    }
+
+    private static final int NO_TILE = -1;
+
+    private final FlickrPhotoCache mPhotoCache;
+    private final int mSpacing;
+    private final int mAnimationDuration;
+    private final Drawable mTileBackground;
+    private final Drawable mPressedBackground;
+    private final Drawable mHiddenDrawable;
+    private final Paint mBitmapPaint = new Paint(Paint.FILTER_BITMAP_FLAG);
+    private final Rect mTileRect = new Rect();
+
+    private Tile[] mTiles = new Tile[0];
+    private int mBoardSize = 1;
+    private int mTileSize = 0;
+    private int mPressedTile = NO_TILE;
+    // Tile the D-pad is on, drawn as pressed while the board has focus
+    private int mFocusedTile = NO_TILE;
+    private OnTileClickListener mListener;
+    private final TileAccessibilityHelper mAccessibilityHelper;
+
+    // Frames of the running reveal or hide animations, null when none runs
+    private FrameTimer mFrameTimer;
+    private int mRunningAnimations = 0;
+
+    public BoardView(Context context) {
+        this(context, null);
+    }
+
+
+    public BoardView(Context context, AttributeSet attrs) {
+        this(context, attrs, 0);
+    }
+
+
+    public BoardView(Context context, AttributeSet attrs, int defStyle) {
+        super(context, attrs, defStyle);
+        mPhotoCache = FlickrPhotoCache.getInstance(context.getApplicationContext());
+        mSpacing = getResources().getDimensionPixelSize(R.dimen.grid_spacing);
+        mAnimationDuration = getResources().getInteger(android.R.integer.config_shortAnimTime);
+        mTileBackground = getResources().getDrawable(R.drawable.transparent_state_drawable);
+        mPressedBackground = getResources().getDrawable(R.drawable.selected_state_drawable);
+        // Own copy, since drawing sets its alpha and drawables share state between users
+        mHiddenDrawable = getResources().getDrawable(R.drawable.ic_empty_grid_item).mutate();
+
+        mAccessibilityHelper = new TileAccessibilityHelper();
+        ViewCompat.setAccessibilityDelegate(this, mAccessibilityHelper);
+        setFocusable(true);
+    }
+
+
+    public void setOnTileClickListener(OnTileClickListener listener) {
+        mListener = listener;
+    }
+
+
+    /**
+     * Shows the photos of a board of boardSize x boardSize tiles, at most one per tile
+     * of the game board. Photos are loaded at tileSize; hidden tiles of the game board
+     * start hidden.
+     */
+    public void setBoard(List<FlickrPhoto> photos, GameBoard board, int boardSize, int tileSize) {
+        releasePhotos();
+
+        int tileCount = Math.min(photos.size(), board.getTileCount());
+        mTiles = new Tile[tileCount];
+        mBoardSize = boardSize;
+        mTileSize = tileSize;
+        mPressedTile = NO_TILE;
+        mFocusedTile = tileCount > 0 ? 0 : NO_TILE;
+
+        for (int i = 0; i < tileCount; i++) {
+            Tile tile = new Tile(i, photos.get(i).imageTitle);
+            tile.shown = board.isHidden(i) ? 0f : 1f;
+            tile.revealed = tile.shown > 0f;
+            mTiles[i] = tile;
+            mPhotoCache.applyPhoto(tile, photos.get(i), tileSize, tileSize, PhotoLoadScheduler.PRIORITY_GRID);
+        }
+
+        requestLayout();
+        invalidate();
+        mAccessibilityHelper.invalidateRoot();
+    }
+
+
+    // Fades the tile's photo in
+    public void revealTile(int position) {
+        if (position >= 0 && position < mTiles.length) {
+            animateTile(mTiles[position], 1f);
+        }
+    }
+
+
+    // Fades every photo out to the hidden tile
+    public void hideAllTiles() {
+        for (Tile tile : mTiles) {
+            animateTile(tile, 0f);
+        }
+    }
+
+
+    // Stops pending loads and running animations and lets go of the photos, so the
+    // cache can reuse their bitmaps. Called by the owner when the view goes away for
+    // good, not on detach, since a view that is attached again would come back blank.
+    public void releasePhotos() {
+        for (Tile tile : mTiles) {
+            mPhotoCache.releasePhoto(tile);
+            tile.bitmap = null;
+            if (tile.animator != null) {
+                tile.animator.end();
+            }
+        }
+    }
+
+
+    private void animateTile(final Tile tile, float shown) {
+        if (tile.animator != null) {
+            tile.animator.cancel();
+        }
+        if (tile.shown == shown) {
+            return;
+        }
+        // Described by where it is going, not the frame it is at
+        tile.revealed = shown > 0f;
+        mAccessibilityHelper.invalidateVirtualView(tile.position);
+
+        ValueAnimator animator = ValueAnimator.ofFloat(tile.shown, shown);
+        animator.setDuration(mAnimationDuration);
+        animator.addUpdateListener(new ValueAnimator.AnimatorUpdateListener() {
+            @Override
+            public void onAnimationUpdate(ValueAnimator animation) {
+                tile.shown = (Float) animation.getAnimatedValue();
+                invalidateTile(tile.position);
+            }
+        });
+        animator.addListener(new AnimatorListenerAdapter() {
+            @Override
+            public void onAnimationEnd(Animator animation) {
+                if (tile.animator == animation) {
+                    tile.animator = null;
+                }
+                onTileAnimationEnd();
+            }
+        });
+
+        tile.animator = animator;
+        onTileAnimationStart();
+        animator.start();
+    }
+
+
+    private void onTileAnimationStart() {
+        if (mRunningAnimations++ == 0) {
+            mFrameTimer = FrameTimer.start("BoardView.tiles");
+        }
+    }
+
+
+    private void onTileAnimationEnd() {
+        if (--mRunningAnimations == 0 && mFrameTimer != null) {
+            mFrameTimer.stop();
+            mFrameTimer = null;
+        }
+    }
+
+
+    private void invalidateTile(int position) {
+        getTileRect(position, mTileRect);
+        invalidate(mTileRect);
+    }
+
+
+    // Side of a tile as drawn. Follows the view's size, so it may differ from the load size.
+    private int getDrawnTileSize() {
+        int width = getWidth() - getPaddingLeft() - getPaddingRight();
+        return Math.max(0, (width - (mBoardSize - 1) * mSpacing) / mBoardSize);
+    }
+
+
+    private void getTileRect(int position, Rect rect) {
+        int tileSize = getDrawnTileSize();
+        int left = getPaddingLeft() + (position % mBoardSize) * (tileSize + mSpacing);
+        int top = getPaddingTop() + (position / mBoardSize) * (tileSize + mSpacing);
+        rect.set(left, top, left + tileSize, top + tileSize);
+    }
+
+
+    // Tile under the point, or NO_TILE for the spacing and padding
+    private int getTileAt(float x, float y) {
+        int tileSize = getDrawnTileSize();
+        if (tileSize == 0) {
+            return NO_TILE;
+        }
+
+        int left = (int) x - getPaddingLeft();
+        int top = (int) y - getPaddingTop();
+        if (left < 0 || top < 0) {
+            return NO_TILE;
+        }
+
+        int column = left / (tileSize + mSpacing);
+        int row = top / (tileSize + mSpacing);
+        if (column >= mBoardSize || left - column * (tileSize + mSpacing) >= tileSize
+                || top - row * (tileSize + mSpacing) >= tileSize) {
+            return NO_TILE;
+        }
+
+        int position = row * mBoardSize + column;
+        return position < mTiles.length ? position : NO_TILE;
+    }
+
+
+    @Override
+    protected void onMeasure(int widthMeasureSpec, int heightMeasureSpec) {
+        int boardSize = mBoardSize * mTileSize + (mBoardSize - 1) * mSpacing;
+        int width = resolveSize(boardSize + getPaddingLeft() + getPaddingRight(), widthMeasureSpec);
+        int height = resolveSize(boardSize + getPaddingTop() + getPaddingBottom(), heightMeasureSpec);
+        setMeasuredDimension(width, height);
+    }
+
+
+    @Override
+    protected void onDraw(Canvas canvas) {
+        for (int i = 0; i < mTiles.length; i++) {
+            Tile tile = mTiles[i];
+            getTileRect(i, mTileRect);
+
+            boolean pressed = i == mPressedTile || (i == mFocusedTile && isFocused());
+            Drawable background = pressed ? mPressedBackground : mTileBackground;
+            background.setBounds(mTileRect);
+            background.draw(canvas);
+
+            if (tile.shown < 1f) {
+                mHiddenDrawable.setBounds(mTileRect);
+                mHiddenDrawable.setAlpha((int) (255 * (1f - tile.shown)));
+                mHiddenDrawable.draw(canvas);
+            }
+            if (tile.shown > 0f && tile.bitmap != null) {
+                mBitmapPaint.setAlpha((int) (255 * tile.shown));
+                canvas.drawBitmap(tile.bitmap, tile.source, mTileRect, mBitmapPaint);
+            }
+        }
+    }
+
+
+    @Override
+    public boolean onTouchEvent(MotionEvent event) {
+        switch (event.getActionMasked()) {
+            case MotionEvent.ACTION_DOWN:
+                setPressedTile(getTileAt(event.getX(), event.getY()));
+                return true;
+
+            case MotionEvent.ACTION_MOVE:
+                if (mPressedTile != NO_TILE && getTileAt(event.getX(), event.getY()) != mPressedTile) {
+                    setPressedTile(NO_TILE);
+                }
+                return true;
+
+            case MotionEvent.ACTION_UP:
+                int position = mPressedTile;
+                setPressedTile(NO_TILE);
+                if (position != NO_TILE) {
+                    performClick();
+                    clickTile(position);
+                }
+                return true;
+
+            case MotionEvent.ACTION_CANCEL:
+                setPressedTile(NO_TILE);
+                return true;
+        }
+        return super.onTouchEvent(event);
+    }
+
+
+    @Override
+    public boolean performClick() {
+        return super.performClick();
+    }
+
+
+    // Same for taps, the D-pad and accessibility services
+    private void clickTile(int position) {
+        playSoundEffect(SoundEffectConstants.CLICK);
+        mAccessibilityHelper.sendEventForVirtualView(position, AccessibilityEvent.TYPE_VIEW_CLICKED);
+        if (mListener != null) {
+            mListener.onTileClick(position);
+        }
+    }
+
+
+    @Override
+    protected boolean dispatchHoverEvent(MotionEvent event) {
+        // Touch exploration moves accessibility focus from tile to tile
+        return mAccessibilityHelper.dispatchHoverEvent(event) || super.dispatchHoverEvent(event);
+    }
+
+
+    // Arrows move between tiles. At the edge of the board they are not handled,
+    // so focus moves on to the next view.
+    @Override
+    public boolean onKeyDown(int keyCode, KeyEvent event) {
+        if (mFocusedTile == NO_TILE) {
+            return super.onKeyDown(keyCode, event);
+        }
+
+        int column = mFocusedTile % mBoardSize;
+        int next = NO_TILE;
+        switch (keyCode) {
+            case KeyEvent.KEYCODE_DPAD_LEFT:
+                next = column > 0 ? mFocusedTile - 1 : NO_TILE;
+                break;
+
+            case KeyEvent.KEYCODE_DPAD_RIGHT:
+                next = column < mBoardSize - 1 ? mFocusedTile + 1 : NO_TILE;
+                break;
+
+            case KeyEvent.KEYCODE_DPAD_UP:
+                next = mFocusedTile - mBoardSize;
+                break;
+
+            case KeyEvent.KEYCODE_DPAD_DOWN:
+                next = mFocusedTile + mBoardSize;
+                break;
+
+            case KeyEvent.KEYCODE_DPAD_CENTER:
+            case KeyEvent.KEYCODE_ENTER:
+                if (event.getRepeatCount() == 0) {
+                    clickTile(mFocusedTile);
+                }
+                return true;
+        }
+
+        if (next < 0 || next >= mTiles.length) {
+            return super.onKeyDown(keyCode, event);
+        }
+        setFocusedTile(next);
+        return true;
+    }
+
+
+    // Entering the board from an edge starts at the nearest row or column
+    @Override
+    protected void onFocusChanged(boolean gainFocus, int direction, Rect previouslyFocusedRect) {
+        super.onFocusChanged(gainFocus, direction, previouslyFocusedRect);
+        if (mTiles.length == 0) {
+            return;
+        }
+
+        if (gainFocus && mFocusedTile != NO_TILE) {
+            int row = mFocusedTile / mBoardSize;
+            int column = mFocusedTile % mBoardSize;
+            int lastRow = (mTiles.length - 1) / mBoardSize;
+            if (direction == FOCUS_DOWN) {
+                row = 0;
+            }
+            else if (direction == FOCUS_UP) {
+                row = lastRow;
+            }
+            else if (direction == FOCUS_RIGHT) {
+                column = 0;
+            }
+            else if (direction == FOCUS_LEFT) {
+                column = mBoardSize - 1;
+            }
+            mFocusedTile = Math.min(row * mBoardSize + column, mTiles.length - 1);
+            mAccessibilityHelper.sendEventForVirtualView(mFocusedTile, AccessibilityEvent.TYPE_VIEW_FOCUSED);
+        }
+        if (mFocusedTile != NO_TILE) {
+            invalidateTile(mFocusedTile);
+        }
+    }
+
+
+    private void setFocusedTile(int position) {
+        invalidateTile(mFocusedTile);
+        mFocusedTile = position;
+        invalidateTile(position);
+        mAccessibilityHelper.sendEventForVirtualView(position, AccessibilityEvent.TYPE_VIEW_FOCUSED);
+    }
+
+
+    // What accessibility services read for a tile: where it is, and its photo once revealed
+    private String describeTile(int position) {
+        int row = position / mBoardSize + 1;
+        int column = position % mBoardSize + 1;
+        Tile tile = mTiles[position];
+        if (!tile.revealed) {
+            return getResources().getString(R.string.tile_hidden, row, column);
+        }
+        String title = !TextUtils.isEmpty(tile.title) ? tile.title : getResources().getString(R.string.tile_untitled);
+        return getResources().getString(R.string.tile_shown, row, column, title);
+    }
+
+
+    private void setPressedTile(int position) {
+        if (position == mPressedTile) {
+            return;
+        }
+        if (mPressedTile != NO_TILE) {
+            invalidateTile(mPressedTile);
+        }
+        mPressedTile = position;
+        if (position != NO_TILE) {
+            invalidateTile(position);
+        }
+    }
+
+
+    /**
+     * Tiles as virtual views, by position. Bounds are the tiles' drawn rects.
+     */
+    private class TileAccessibilityHelper extends ExploreByTouchHelper {
+        private final Rect mBounds = new Rect();
+
+        TileAccessibilityHelper() {
+            super(BoardView.this);
+        }
+
+        @Override
+        protected int getVirtualViewAt(float x, float y) {
+            int position = getTileAt(x, y);
+            return position != NO_TILE ? position : INVALID_ID;
+        }
+
+        @Override
+        protected void getVisibleVirtualViews(List<Integer> virtualViewIds) {
+            for (int i = 0; i < mTiles.length; i++) {
+                virtualViewIds.add(i);
+            }
+        }
+
+        @Override
+        protected void onPopulateEventForVirtualView(int virtualViewId, AccessibilityEvent event) {
+            // Events for a tile of a board that was just replaced still need some text
+            event.setContentDescription(virtualViewId < mTiles.length ? describeTile(virtualViewId) : "");
+        }
+
+        @Override
+        protected void onPopulateNodeForVirtualView(int virtualViewId, AccessibilityNodeInfoCompat node) {
+            if (virtualViewId >= mTiles.length) {
+                node.setContentDescription("");
+                node.setBoundsInParent(new Rect());
+                return;
+            }
+
+            getTileRect(virtualViewId, mBounds);
+            node.setContentDescription(describeTile(virtualViewId));
+            node.setBoundsInParent(mBounds);
+            node.setClickable(true);
+            node.addAction(AccessibilityNodeInfoCompat.ACTION_CLICK);
+            node.setFocusable(true);
+            node.setFocused(isFocused() && virtualViewId == mFocusedTile);
+        }
+
+        @Override
+        protected boolean onPerformActionForVirtualView(int virtualViewId, int action, Bundle arguments) {
+            if (action != AccessibilityNodeInfoCompat.ACTION_CLICK || virtualViewId >= mTiles.length) {
+                return false;
+            }
+            clickTile(virtualViewId);
+            return true;
+        }
+    }
+
+
+    /**
+     * One tile: its photo once loaded, the centered square of the photo it shows,
+     * and how far it is shown, from 0 (hidden) to 1. revealed is where an animation
+     * of shown is going.
+     */
+    private class Tile implements PhotoTarget {
+        final int position;
+        final String title;
+        Bitmap bitmap;
+        final Rect source = new Rect();
+        float shown;
+        boolean revealed;
+        ValueAnimator animator;
+        private Object mRequest;
+        private Bitmap mBoundPhoto;
+
+        Tile(int position, String title) {
+            this.position = position;
+            this.title = title;
+        }
+
+        @Override
+        public void onPhotoLoaded(Bitmap bitmap) {
+            this.bitmap = bitmap;
+            // Center crop to the square tile
+            int side = Math.min(bitmap.getWidth(), bitmap.getHeight());
+            int left = (bitmap.getWidth() - side) / 2;
+            int top = (bitmap.getHeight() - side) / 2;
+            source.set(left, top, left + side, top + side);
+            invalidateTile(position);
+        }
+
+        @Override
+        public Object getPhotoRequest() {
+            return mRequest;
+        }
+
+        @Override
+        public void setPhotoRequest(Object request) {
+            mRequest = request;
+        }
+
+        @Override
+        public Bitmap getBoundPhoto() {
+            return mBoundPhoto;
+        }
+
+        @Override
+        public void setBoundPhoto(Bitmap bitmap) {
+            mBoundPhoto = bitmap;
+        }
+    }
+}
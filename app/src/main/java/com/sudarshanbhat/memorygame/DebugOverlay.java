@@ -0,0 +1,183 @@
+package com.sudarshanbhat.memorygame;
+
+import android.content.Context;
+import android.view.View;
+import android.widget.TextView;
+
+import com.sudarshanbhat.memorygame.core.FlickrHttpClient;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.Callable;
+
+/**
+ * Shows the load pipeline metrics in a text view over the game, refreshed twice a
+ * second while it is shown: stage timings, cache hit ratios, bytes resident and
+ * evictions per tier, scheduler queues and HTTP stats. Also writes them out as a
+ * Chrome trace. Debug builds only; main thread only.
+ */
+public class DebugOverlay {
+
+    private static final long REFRESH_INTERVAL_MS = 500;
+
+    public interface TraceDumpListener {
+        // Called on the main thread with the written file, or null if writing failed
+        public void onTraceDumped(File file);
+    }
+
+    private final TextView mTextView;
+    private final FlickrPhotoCache mPhotoCache;
+    private final PipelineMetrics mMetrics = PipelineMetrics.getInstance();
+    private boolean mShown = false;
+
+    private final Runnable mRefresh = new Runnable() {
+        @Override
+        public void run() {
+            if (!mShown) {
+                return;
+            }
+            mTextView.setText(buildText());
+            mTextView.postDelayed(this, REFRESH_INTERVAL_MS);
+        }
+    };
+
+    public DebugOverlay(TextView textView, FlickrPhotoCache photoCache) {
+        mTextView = textView;
+        mPhotoCache = photoCache;
+    }
+
+
+    public void show() {
+        if (mShown) {
+            return;
+        }
+        mShown = true;
+        mTextView.setVisibility(View.VISIBLE);
+        mRefresh.run();
+    }
+
+
+    // Also stops refreshing, so call it before the view goes away
+    public void hide() {
+        mShown = false;
+        mTextView.removeCallbacks(mRefresh);
+        mTextView.setVisibility(View.GONE);
+    }
+
+
+    public boolean isShown() {
+        return mShown;
+    }
+
+
+    private String buildText() {
+        StringBuilder sb = new StringBuilder();
+        for (PipelineMetrics.Histogram histogram : mMetrics.getHistograms()) {
+            sb.append(histogram.name).append(": n=").append(histogram.getCount())
+                    .append(" p50=").append(formatMicros(histogram.getPercentileMicros(50)))
+                    .append(" p90=").append(formatMicros(histogram.getPercentileMicros(90)))
+                    .append(" max=").append(formatMicros(histogram.getMaxMicros())).append('\n');
+        }
+
+        sb.append("frames: dropped=").append(mMetrics.counter("frame.dropped").get()).append('\n');
+
+        for (FlickrPhotoCache.TierStats tier : mPhotoCache.getTierStats()) {
+            sb.append(tier.name).append(": ").append(tier.size / 1024).append('/').append(tier.maxSize / 1024)
+                    .append("KB hit=").append(percent(tier.hitCount, tier.missCount))
+                    .append(" evicted=").append(tier.evictionCount).append('\n');
+        }
+
+        long diskHits = mMetrics.counter("disk.hits").get();
+        long diskMisses = mMetrics.counter("disk.misses").get();
+        sb.append("disk: hit=").append(percent(diskHits, diskMisses))
+                .append(" errors=").append(mMetrics.counter("disk.errors").get()).append('\n');
+        sb.append("next board: ready=").append(mMetrics.counter("nextBoard.ready").get())
+                .append(" partial=").append(mMetrics.counter("nextBoard.partial").get()).append('\n');
+
+        BitmapPool pool = mPhotoCache.getBitmapPool();
+        sb.append("pool: ").append(pool.getSize() / 1024).append("KB hit=")
+                .append(percent(pool.getHitCount(), pool.getMissCount())).append('\n');
+
+        PhotoLoadScheduler scheduler = PhotoLoadScheduler.getInstance();
+        sb.append("queued:");
+        for (int lane = PhotoLoadScheduler.PRIORITY_QUIZ; lane <= PhotoLoadScheduler.PRIORITY_LOOK_AHEAD; lane++) {
+            sb.append(' ').append(PhotoLoadScheduler.getLaneName(lane)).append('=').append(scheduler.getQueueDepth(lane));
+        }
+        sb.append(" boosts=").append(mMetrics.counter("scheduler.boosts").get()).append('\n');
+
+        FlickrHttpClient.Stats http = FlickrHttpClient.getInstance().getStats();
+        sb.append("http: n=").append(http.getRequestCount()).append(" failed=").append(http.getFailureCount())
+                .append(" retries=").append(http.getRetryCount()).append(" 304=").append(http.getNotModifiedCount())
+                .append(" errors=").append(mMetrics.counter("photo.networkErrors").get() + mMetrics.counter("feed.errors").get());
+        return sb.toString();
+    }
+
+
+    // Point in time values that are not counters, added to the trace as counter events
+    private Map<String, Long> collectGauges() {
+        LinkedHashMap<String, Long> gauges = new LinkedHashMap<String, Long>();
+        for (FlickrPhotoCache.TierStats tier : mPhotoCache.getTierStats()) {
+            gauges.put("memory." + tier.name + ".bytes", (long) tier.size);
+            gauges.put("memory." + tier.name + ".hits", (long) tier.hitCount);
+            gauges.put("memory." + tier.name + ".misses", (long) tier.missCount);
+            gauges.put("memory." + tier.name + ".evictions", (long) tier.evictionCount);
+        }
+
+        BitmapPool pool = mPhotoCache.getBitmapPool();
+        gauges.put("memory.pool.bytes", (long) pool.getSize());
+
+        PhotoLoadScheduler scheduler = PhotoLoadScheduler.getInstance();
+        for (int lane = PhotoLoadScheduler.PRIORITY_QUIZ; lane <= PhotoLoadScheduler.PRIORITY_LOOK_AHEAD; lane++) {
+            gauges.put("scheduler." + PhotoLoadScheduler.getLaneName(lane) + ".maxWaitMs", scheduler.getMaxWaitMillis(lane));
+        }
+        return gauges;
+    }
+
+
+    /**
+     * Writes the trace to a new file in the app's external files directory, or its
+     * cache directory if there is no external storage. Open it in chrome://tracing
+     * or Perfetto.
+     */
+    public void dumpTrace(Context context, final TraceDumpListener listener) {
+        File directory = context.getExternalFilesDir(null);
+        if (directory == null) {
+            directory = context.getCacheDir();
+        }
+        final File file = new File(directory, "pipeline_trace_" + System.currentTimeMillis() + ".json");
+
+        // Gauges are read now, the file is written in the background
+        final Map<String, Long> gauges = collectGauges();
+        PhotoLoadScheduler.getInstance().schedule(PhotoLoadScheduler.PRIORITY_PREFETCH, this, new Callable<File>() {
+            @Override
+            public File call() {
+                try {
+                    mMetrics.writeChromeTrace(file, gauges);
+                    return file;
+                } catch (IOException e) {
+                    e.printStackTrace();
+                    return null;
+                }
+            }
+        }, new PhotoLoadScheduler.Callback<File>() {
+            @Override
+            public void onComplete(File file) {
+                listener.onTraceDumped(file);
+            }
+        });
+    }
+
+
+    // Hit ratio as a whole percentage, "-" before the first lookup
+    private static String percent(long hits, long misses) {
+        long lookups = hits + misses;
+        return lookups != 0 ? (100 * hits / lookups) + "%" : "-";
+    }
+
+
+    private static String formatMicros(long micros) {
+        return micros >= 10000 ? (micros / 1000) + "ms" : micros + "us";
+    }
+}
@@ -1,24 +1,37 @@
 package com.sudarshanbhat.memorygame;
 
-import android.app.Activity;
 import android.app.ActivityManager;
+import android.content.ComponentCallbacks2;
 import android.content.Context;
+import android.content.res.Configuration;
 import android.graphics.Bitmap;
 import android.graphics.BitmapFactory;
-import android.os.AsyncTask;
-import android.support.v4.util.LruCache;
+import android.os.Build;
 import android.widget.ImageView;
 
+import com.sudarshanbhat.memorygame.core.CacheKeys;
+import com.sudarshanbhat.memorygame.core.EncodedPhotoStore;
+import com.sudarshanbhat.memorygame.core.FlickrHttpClient;
+import com.sudarshanbhat.memorygame.core.FlickrPhoto;
+import com.sudarshanbhat.memorygame.core.PhotoDiskCache;
+import com.sudarshanbhat.memorygame.core.SingleFlight;
+import com.sudarshanbhat.memorygame.core.SizedLruCache;
+
 import java.io.File;
-import java.io.FileInputStream;
-import java.io.FileNotFoundException;
-import java.io.FileOutputStream;
 import java.io.IOException;
-import java.io.InputStream;
-import java.io.OutputStream;
-import java.net.HttpURLConnection;
-import java.net.URL;
+import java.lang.ref.WeakReference;
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 
 /**
  * Created by sudarshan on 8/23/14.
@@ -26,224 +39,917 @@ import java.util.ArrayList;
  * Manager photo downloading, caching in memory and disk, and loading
  * photos into imageviews
  */
-public class FlickrPhotoCache {
+public class FlickrPhotoCache implements ComponentCallbacks2, PhotoPrefetcher.PhotoLoader {
+
+    // Replaced when the memory budget changes, hence volatile
+    private volatile SizedLruCache<String, Bitmap> mImageLruCache;
+
+    // Photos decoded ahead of time for the next board. Kept apart from mImageLruCache
+    // with its own budget, so look ahead can never evict the live board's photos.
+    private volatile SizedLruCache<String, Bitmap> mLookAheadLruCache;
+
+    // Compressed bytes of downloaded photos, in memory, on disk and from the network.
+    // Its memory tier is roughly ten times smaller per photo than the decoded bitmaps,
+    // so it holds many more photos. A bitmap miss that hits there skips the disk.
+    private final EncodedPhotoStore mPhotoStore;
+
+    // Share of the memory budget that goes to compressed bytes
+    private static final int ENCODED_CACHE_DIVISOR = 8;
+
+    // Combined budget of the bitmap and compressed bytes tiers
+    private int mMemoryCacheSize;
+
+    // Bitmaps evicted from the LRU are reused for later decodes
+    private BitmapPool mBitmapPool;
+
+    // Cache keys of the board on screen. Kept when memory is trimmed.
+    // Replaced as a whole, never modified.
+    private volatile Set<String> mLiveBoardKeys = Collections.emptySet();
+
+    // Number of targets showing each bitmap. An evicted bitmap goes to the pool only
+    // once no target shows it, so nothing on screen is decoded over. Guarded by itself.
+    private final IdentityHashMap<Bitmap, Integer> mBoundCounts = new IdentityHashMap<Bitmap, Integer>();
+
+    // Bitmaps evicted while still shown, pooled when their last target lets go.
+    // Guarded by mBoundCounts.
+    private final Set<Bitmap> mEvictedWhileBound = Collections.newSetFromMap(new IdentityHashMap<Bitmap, Boolean>());
+
+    public static final long DEFAULT_DISK_CACHE_SIZE = 20 * 1024 * 1024;
+
+    private PhotoPrefetcher mPrefetcher;
+    private PhotoPrefetcher mLookAheadPrefetcher;
+
+    private final PhotoLoadScheduler mScheduler = PhotoLoadScheduler.getInstance();
+
+    // Timings and outcomes of every stage a cold photo goes through
+    private final PipelineMetrics mMetrics = PipelineMetrics.getInstance();
+    private final PipelineMetrics.Histogram mNetworkTimes = mMetrics.histogram("photo.network");
+    private final PipelineMetrics.Histogram mDiskReadTimes = mMetrics.histogram("photo.diskRead");
+    private final PipelineMetrics.Histogram mDiskWriteTimes = mMetrics.histogram("photo.diskWrite");
+    private final PipelineMetrics.Histogram mDecodeTimes = mMetrics.histogram("photo.decode");
+    private final PipelineMetrics.Counter mDiskHits = mMetrics.counter("disk.hits");
+    private final PipelineMetrics.Counter mDiskMisses = mMetrics.counter("disk.misses");
+    private final PipelineMetrics.Counter mDiskErrors = mMetrics.counter("disk.errors");
+    private final PipelineMetrics.Counter mNetworkErrors = mMetrics.counter("photo.networkErrors");
+    private final PipelineMetrics.Counter mDecodeErrors = mMetrics.counter("photo.decodeErrors");
+
+    // Loads currently running, keyed by cache key. Concurrent callers for the same
+    // photo and size wait on the same decode instead of running it again, lending
+    // it their lane's thread priority.
+    private final SingleFlight<Bitmap> mDecodes = new SingleFlight<Bitmap>(mScheduler.getFlightOwners());
+
+    private volatile boolean mExactScaling = false;
+
+    /**
+     * Pixel format photos are decoded to. RGB_565 takes half the memory of ARGB_8888
+     * but has no alpha and fewer colors per channel.
+     */
+    public enum PixelFormatPolicy {
+        // Always ARGB_8888
+        ARGB_8888,
+        // RGB_565 for formats that cannot have alpha (JPEG), ARGB_8888 for the rest
+        RGB_565_IF_OPAQUE
+    }
 
-    private LruCache<String, Bitmap> mImageLruCache;
+    // Flickr thumbnails are JPEGs, so by default they take half the memory
+    private volatile PixelFormatPolicy mPixelFormatPolicy = PixelFormatPolicy.RGB_565_IF_OPAQUE;
 
-    private File mCacheDir;
+    // Opens the disk cache and writes downloaded photos to it
+    private final ExecutorService mDiskWriteExecutor = Executors.newSingleThreadExecutor();
 
-    private static FlickrPhotoCache sInstance;
+    // Per decode thread buffer, so decoding a photo does not allocate I/O buffers
+    private static final ThreadLocal<byte[]> sDecodeTempStorage = new ThreadLocal<byte[]>() {
+        @Override
+        protected byte[] initialValue() {
+            return new byte[16 * 1024];
+        }
+    };
+
+    // Requests waiting for a lazy load, keyed by cache key. Only touched on the main thread.
+    private final HashMap<String, ArrayList<PhotoRequest>> mPendingRequests = new HashMap<String, ArrayList<PhotoRequest>>();
+
+    // Volatile, so a thread that sees the instance also sees it fully constructed
+    private static volatile FlickrPhotoCache sInstance;
 
     public static FlickrPhotoCache getInstance(Context context) {
-        if (sInstance == null) {
-            sInstance = new FlickrPhotoCache(context);
+        FlickrPhotoCache instance = sInstance;
+        if (instance == null) {
+            synchronized (FlickrPhotoCache.class) {
+                instance = sInstance;
+                if (instance == null) {
+                    instance = new FlickrPhotoCache(context);
+                    sInstance = instance;
+                }
+            }
         }
 
-        return sInstance;
+        return instance;
     }
 
     // Singleton. Private constructor.
     private FlickrPhotoCache(Context context) {
         // Get memory class of this device, exceeding this amount will throw OOM
-        final int memClass = ((ActivityManager) context.getApplicationContext()
-                .getSystemService(Context.ACTIVITY_SERVICE))
-                .getMemoryClass();
+        ActivityManager activityManager = (ActivityManager) context.getApplicationContext()
+                .getSystemService(Context.ACTIVITY_SERVICE);
+        final int memClass = activityManager.getMemoryClass();
         int lruCacheSize = 0;
 
         lruCacheSize = 1024 * 1024 * memClass / 4;
 
-        mImageLruCache = new LruCache<String, Bitmap>(lruCacheSize) {
+        // Low RAM devices get half the budget. It can still be changed later.
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.KITKAT && activityManager.isLowRamDevice()) {
+            lruCacheSize /= 2;
+        }
+
+        mMemoryCacheSize = lruCacheSize;
+        int encodedCacheSize = lruCacheSize / ENCODED_CACHE_DIVISOR;
+        int bitmapCacheSize = lruCacheSize - encodedCacheSize;
+
+        mBitmapPool = new BitmapPool(bitmapCacheSize / 4);
+        mImageLruCache = newImageLruCache(bitmapCacheSize);
+        mLookAheadLruCache = newLookAheadLruCache(bitmapCacheSize / 4);
+        mPhotoStore = new EncodedPhotoStore(FlickrHttpClient.getInstance(), mDiskWriteExecutor,
+                encodedCacheSize, new MetricsListener(), mScheduler.getFlightOwners());
+
+        // Storage state, mkdirs and replaying the journal are disk I/O. They run on the
+        // disk write thread, so anything written to disk is queued behind them.
+        final Context appContext = context.getApplicationContext();
+        mDiskWriteExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                StartupTrace.beginSection("FlickrPhotoCache.openDiskCache");
+                PhotoDiskCache diskCache = null;
+                try {
+                    diskCache = openDiskCache(appContext);
+                } finally {
+                    mPhotoStore.setDiskCache(diskCache);
+                    StartupTrace.endSection();
+                }
+            }
+        });
+
+        mPrefetcher = new PhotoPrefetcher(this, mScheduler, PhotoLoadScheduler.PRIORITY_PREFETCH);
+        mLookAheadPrefetcher = new PhotoPrefetcher(this, mScheduler, PhotoLoadScheduler.PRIORITY_LOOK_AHEAD);
+
+        // Only the application context is kept, by the framework, for these callbacks
+        context.getApplicationContext().registerComponentCallbacks(this);
+    }
+
+
+    private SizedLruCache<String, Bitmap> newImageLruCache(int maxSize) {
+        return new SizedLruCache<String, Bitmap>(maxSize) {
             @Override
             protected int sizeOf(String key, Bitmap value) {
-                return value.getRowBytes() * value.getHeight();
+                return BitmapPool.getSize(value);
+            }
+
+            @Override
+            protected void entryRemoved(boolean evicted, String key, Bitmap oldValue, Bitmap newValue) {
+                // Only evicted entries are pooled, and only once no target shows them
+                if (evicted) {
+                    poolWhenReleased(oldValue);
+                }
             }
         };
+    }
+
+
+    private SizedLruCache<String, Bitmap> newLookAheadLruCache(int maxSize) {
+        return new SizedLruCache<String, Bitmap>(maxSize) {
+            @Override
+            protected int sizeOf(String key, Bitmap value) {
+                return BitmapPool.getSize(value);
+            }
+
+            @Override
+            protected void entryRemoved(boolean evicted, String key, Bitmap oldValue, Bitmap newValue) {
+                // Usually never shown, but a target may have bound one just before a
+                // concurrent look ahead decode replaced its promoted copy
+                if (evicted) {
+                    poolWhenReleased(oldValue);
+                }
+            }
+        };
+    }
+
 
-        createCacheDirectory(context);
+    // Sets the combined budget in bytes of decoded bitmaps and compressed bytes. An eighth
+    // goes to compressed bytes. Look ahead and the bitmap pool get a quarter of the bitmap
+    // share each. Cached photos are kept as far as they fit, live board last.
+    public synchronized void setMemoryCacheSize(int maxSize) {
+        int encodedCacheSize = maxSize / ENCODED_CACHE_DIVISOR;
+        int bitmapCacheSize = maxSize - encodedCacheSize;
+
+        SizedLruCache<String, Bitmap> imageLruCache = newImageLruCache(bitmapCacheSize);
+        SizedLruCache<String, Bitmap> lookAheadLruCache = newLookAheadLruCache(bitmapCacheSize / 4);
+        mBitmapPool.setMaxSize(bitmapCacheSize / 4);
+
+        // Snapshots are least recently used first, so putting them in order keeps recency
+        Set<String> liveBoardKeys = mLiveBoardKeys;
+        Map<String, Bitmap> live = new LinkedHashMap<String, Bitmap>();
+        for (Map.Entry<String, Bitmap> entry : mImageLruCache.snapshot().entrySet()) {
+            if (liveBoardKeys.contains(entry.getKey())) {
+                live.put(entry.getKey(), entry.getValue());
+            }
+            else {
+                imageLruCache.put(entry.getKey(), entry.getValue());
+            }
+        }
+        for (Map.Entry<String, Bitmap> entry : live.entrySet()) {
+            imageLruCache.put(entry.getKey(), entry.getValue());
+        }
+        for (Map.Entry<String, Bitmap> entry : mLookAheadLruCache.snapshot().entrySet()) {
+            lookAheadLruCache.put(entry.getKey(), entry.getValue());
+        }
+        mPhotoStore.setMemoryCacheSize(encodedCacheSize);
+
+        mImageLruCache = imageLruCache;
+        mLookAheadLruCache = lookAheadLruCache;
+        mMemoryCacheSize = maxSize;
     }
 
 
-    private void createCacheDirectory(Context context){
+    public synchronized int getMemoryCacheSize() {
+        return mMemoryCacheSize;
+    }
+
+
+    // Size and hit / miss / eviction counts of every memory tier
+    public List<TierStats> getTierStats() {
+        ArrayList<TierStats> stats = new ArrayList<TierStats>(3);
+        stats.add(new TierStats("bitmaps", mImageLruCache));
+        stats.add(new TierStats("lookAhead", mLookAheadLruCache));
+        stats.add(new TierStats("encoded", mPhotoStore.getMemoryCache()));
+        return stats;
+    }
+
+
+    // Marks the photos of the board on screen, decoded at the given size
+    public void setLiveBoard(List<FlickrPhoto> photos, int targetWidth, int targetHeight) {
+        HashSet<String> keys = new HashSet<String>();
+        for (FlickrPhoto photo : photos) {
+            keys.add(CacheKeys.memoryKey(photo.imageResourceLink, targetWidth, targetHeight));
+        }
+        mLiveBoardKeys = Collections.unmodifiableSet(keys);
+    }
+
+
+    /**
+     * Gives memory back progressively as pressure rises:
+     * look ahead photos and pooled bitmaps first, then compressed bytes and photos of earlier boards,
+     * and only once the app is in the background and about to be killed, the live
+     * board too. The disk cache is left alone, so a warm start still avoids the network.
+     */
+    @Override
+    public void onTrimMemory(int level) {
+        if (level >= TRIM_MEMORY_MODERATE) {
+            // In the background and next in line to be killed
+            clearMemory(false);
+        }
+        else if (level >= TRIM_MEMORY_BACKGROUND
+                || level == TRIM_MEMORY_RUNNING_LOW || level == TRIM_MEMORY_RUNNING_CRITICAL) {
+            clearMemory(true);
+        }
+        else if (level >= TRIM_MEMORY_RUNNING_MODERATE) {
+            // Running moderate, or the UI was just hidden
+            mLookAheadLruCache.evictAll();
+            mBitmapPool.clear();
+        }
+    }
+
+
+    @Override
+    public void onLowMemory() {
+        clearMemory(false);
+    }
+
+
+    @Override
+    public void onConfigurationChanged(Configuration newConfig) {
+    }
+
+
+    // Drops decoded photos from memory, except for the live board if keepLiveBoard is set.
+    // Entries are removed rather than evicted, so none of them go to the pool.
+    private void clearMemory(boolean keepLiveBoard) {
+        mLookAheadLruCache.evictAll();
+        mPhotoStore.getMemoryCache().evictAll();
+
+        SizedLruCache<String, Bitmap> imageLruCache = mImageLruCache;
+        Set<String> liveBoardKeys = mLiveBoardKeys;
+        for (String key : imageLruCache.snapshot().keySet()) {
+            if (!keepLiveBoard || !liveBoardKeys.contains(key)) {
+                imageLruCache.remove(key);
+            }
+        }
+
+        mBitmapPool.clear();
+    }
+
+
+    // Runs on the disk write thread. Null if the cache could not be opened.
+    private PhotoDiskCache openDiskCache(Context context){
         // Directory to save cache directory
+        File cacheDir;
         if (android.os.Environment.getExternalStorageState().equals(android.os.Environment.MEDIA_MOUNTED)) {
-            mCacheDir = new File(android.os.Environment.getExternalStorageDirectory(), "MemoryGame/Cache");
+            cacheDir = new File(android.os.Environment.getExternalStorageDirectory(), "MemoryGame/Cache");
         }
         else {
-            mCacheDir = context.getCacheDir();
+            cacheDir = new File(context.getCacheDir(), "MemoryGame");
         }
 
-        // If cache directory is not found, create one
-        if(!mCacheDir.exists()) {
-            mCacheDir.mkdirs();
+        // Creates the cache directory if it is not found
+        PhotoDiskCache diskCache = new PhotoDiskCache(cacheDir, DEFAULT_DISK_CACHE_SIZE);
+        try {
+            diskCache.open();
+            return diskCache;
+        } catch (IOException e) {
+            mDiskErrors.increment();
+            e.printStackTrace();
+            return null;
         }
     }
 
-    // Applies Flickr Photo to imageview. Lazy loads if required.
-    public void applyPhoto(ImageView imageView, FlickrPhoto photo) {
-        if (mImageLruCache.get(photo.imageResourceLink) != null) {
-            imageView.setImageBitmap(mImageLruCache.get(photo.imageResourceLink));
+
+    // Blocks until the disk cache is opened, so that isDownloaded() gives real answers.
+    // Background threads only.
+    public void awaitDiskCache() {
+        mPhotoStore.awaitDiskCache();
+    }
+
+
+    // Maximum bytes of downloaded photos kept on disk
+    public void setDiskCacheSize(final long maxSize) {
+        // Queued behind opening the cache
+        mDiskWriteExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                PhotoDiskCache diskCache = mPhotoStore.peekDiskCache();
+                if (diskCache == null) {
+                    return;
+                }
+                try {
+                    diskCache.setMaxSize(maxSize);
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+            }
+        });
+    }
+
+    // Applies Flickr Photo to imageview, decoded for the given size. Lazy loads if required,
+    // in the given PhotoLoadScheduler lane.
+    public void applyPhoto(ImageView imageView, FlickrPhoto photo, int targetWidth, int targetHeight, int priority) {
+        applyPhoto(getTarget(imageView), photo, targetWidth, targetHeight, priority);
+    }
+
+
+    // Same for any photo target.
+    // Does a single memory cache lookup; the key is reused for the lazy load.
+    public void applyPhoto(PhotoTarget target, FlickrPhoto photo, int targetWidth, int targetHeight, int priority) {
+        String key = CacheKeys.memoryKey(photo.imageResourceLink, targetWidth, targetHeight);
+        Bitmap bitmap = getFromMemory(key);
+        if (bitmap != null && bindPhoto(target, key, bitmap)) {
+            cancelLoad(target);
+            target.onPhotoLoaded(bitmap);
         }
 
         else {
-            lazyLoad(imageView, photo);
+            lazyLoad(target, photo, key, targetWidth, targetHeight, priority, false);
         }
     }
 
-    // Downloads flickr photo and stores it in memory and file cache
-    public int downloadPhotos(ArrayList<FlickrPhoto> photos) {
+    // Downloads flickr photos in parallel and stores them in memory and file cache.
+    // Listener is called on the main thread once every photo has loaded or failed.
+    public PhotoPrefetcher.PrefetchBatch prefetchPhotos(List<FlickrPhoto> photos, int targetWidth, int targetHeight,
+                                                        PhotoPrefetcher.PrefetchListener listener) {
+        return mPrefetcher.prefetch(photos, targetWidth, targetHeight, listener);
+    }
+
+
+    // Downloads and decodes photos of a coming board at low priority into the look
+    // ahead cache. They move to the main cache once they are shown.
+    public PhotoPrefetcher.PrefetchBatch lookAheadPhotos(List<FlickrPhoto> photos, int targetWidth, int targetHeight,
+                                                         PhotoPrefetcher.PrefetchListener listener) {
+        return mLookAheadPrefetcher.prefetch(photos, targetWidth, targetHeight, listener);
+    }
+
+
+    // Number of photos loaded at the same time, by all lanes together
+    public void setLoaderPoolSize(int poolSize) {
+        mScheduler.setPoolSize(poolSize);
+    }
 
-        for (int i = 0; i < photos.size(); i++) {
-            int retValue = downloadFlickrPhoto(photos.get(i));
-            if (retValue == 1) {
-                return 1;
+
+    // When enabled, sampled bitmaps larger than the target are scaled down to the
+    // exact target size. Costs one extra scaling pass, saves memory in the cache.
+    public void setExactScaling(boolean exactScaling) {
+        mExactScaling = exactScaling;
+    }
+
+
+    // Applies to photos decoded from now on. Photos already cached keep their format.
+    public void setPixelFormatPolicy(PixelFormatPolicy policy) {
+        mPixelFormatPolicy = policy;
+    }
+
+
+    // Pool statistics, to check that steady state play hardly allocates bitmaps
+    public BitmapPool getBitmapPool() {
+        return mBitmapPool;
+    }
+
+
+    // Downloads asynchronously and applies image to imageview.
+    // If the same photo is already being lazy loaded, the imageview just joins that load.
+    // The imageview's target holds its request, which supersedes any earlier one, so a
+    // recycled imageview never gets the photo it asked for before.
+    public void lazyLoad(ImageView imageView, FlickrPhoto photo, int targetWidth, int targetHeight, int priority) {
+        lazyLoad(getTarget(imageView), photo, CacheKeys.memoryKey(photo.imageResourceLink, targetWidth, targetHeight),
+                targetWidth, targetHeight, priority, false);
+    }
+
+
+    // retry is set for the second load of a photo that was evicted before it could be shown
+    private void lazyLoad(PhotoTarget target, final FlickrPhoto photo, final String key,
+                          final int targetWidth, final int targetHeight, final int priority, final boolean retry) {
+        PhotoRequest current = (PhotoRequest) target.getPhotoRequest();
+        if (current != null && current.key.equals(key)) {
+            return;
+        }
+        cancelLoad(target);
+
+        PhotoRequest request = new PhotoRequest(key, target);
+        target.setPhotoRequest(request);
+
+        ArrayList<PhotoRequest> requests = mPendingRequests.get(key);
+        if (requests != null) {
+            requests.add(request);
+            return;
+        }
+
+        requests = new ArrayList<PhotoRequest>();
+        requests.add(request);
+        mPendingRequests.put(key, requests);
+
+        mScheduler.schedule(priority, key, new Callable<Bitmap>() {
+            @Override
+            public Bitmap call() throws Exception {
+                return loadPhoto(photo, targetWidth, targetHeight, false);
             }
+        }, new PhotoLoadScheduler.Callback<Bitmap>() {
+            @Override
+            public void onComplete(Bitmap bitmap) {
+                // Deliver to every target that asked for this photo while it was loading
+                ArrayList<PhotoRequest> requests = mPendingRequests.remove(key);
+                if (requests == null) {
+                    return;
+                }
+
+                for (PhotoRequest request : requests) {
+                    PhotoTarget target = request.target.get();
+                    // Skip targets that are gone or were bound to something else since
+                    if (target == null || target.getPhotoRequest() != request) {
+                        continue;
+                    }
+                    target.setPhotoRequest(null);
+                    if (bitmap == null) {
+                        continue;
+                    }
+                    if (bindPhoto(target, key, bitmap)) {
+                        target.onPhotoLoaded(bitmap);
+                    }
+                    else if (!retry) {
+                        // Evicted, and maybe pooled, before it got here
+                        lazyLoad(target, photo, key, targetWidth, targetHeight, priority, true);
+                    }
+                }
+            }
+        });
+    }
+
+
+    // Stops lazy loading for a target that shows something else or goes away.
+    // The load itself is cancelled once no other target waits for it.
+    public void cancelLoad(PhotoTarget target) {
+        PhotoRequest request = (PhotoRequest) target.getPhotoRequest();
+        if (request == null) {
+            return;
+        }
+        target.setPhotoRequest(null);
+
+        ArrayList<PhotoRequest> requests = mPendingRequests.get(request.key);
+        if (requests == null) {
+            return;
+        }
+        requests.remove(request);
+        if (requests.isEmpty()) {
+            mPendingRequests.remove(request.key);
+            mScheduler.cancel(request.key);
+        }
+    }
+
+
+    // Cancels the imageview's load and clears it, so the photo it showed can be reused
+    // once it is evicted. For imageviews that go away or are hidden.
+    public void releasePhoto(ImageView imageView) {
+        PhotoTarget target = (PhotoTarget) imageView.getTag(R.id.tag_photo_request);
+        if (target != null) {
+            releasePhoto(target);
+        }
+        imageView.setImageDrawable(null);
+    }
+
+
+    // Cancels the target's load and lets go of the photo it shows. The target must not
+    // draw that bitmap any more: once evicted it is decoded over.
+    public void releasePhoto(PhotoTarget target) {
+        cancelLoad(target);
+        Bitmap bitmap = target.getBoundPhoto();
+        target.setBoundPhoto(null);
+        unbind(bitmap);
+    }
+
+
+    // Counts target as showing bitmap, in place of whatever it showed before. Fails if
+    // bitmap was evicted since it was looked up and no other target holds it, as it may
+    // be in the pool already. Main thread only.
+    private boolean bindPhoto(PhotoTarget target, String key, Bitmap bitmap) {
+        Bitmap previous = target.getBoundPhoto();
+        if (previous == bitmap) {
+            return true;
+        }
+
+        synchronized (mBoundCounts) {
+            Integer count = mBoundCounts.get(bitmap);
+            if (count == null && mImageLruCache.peek(key) != bitmap && mLookAheadLruCache.peek(key) != bitmap) {
+                return false;
+            }
+            mBoundCounts.put(bitmap, count != null ? count + 1 : 1);
         }
-        return 0;
+        target.setBoundPhoto(bitmap);
+        unbind(previous);
+        return true;
     }
 
 
-    // Downloads asynchronously and applies image to imageview
-    public void lazyLoad(ImageView imageView, FlickrPhoto photo) {
-        new PhotoLazyLoaderTask(imageView, photo).execute();
+    private void unbind(Bitmap bitmap) {
+        if (bitmap == null) {
+            return;
+        }
+
+        synchronized (mBoundCounts) {
+            Integer count = mBoundCounts.get(bitmap);
+            if (count == null) {
+                return;
+            }
+            if (count > 1) {
+                mBoundCounts.put(bitmap, count - 1);
+                return;
+            }
+            mBoundCounts.remove(bitmap);
+            if (mEvictedWhileBound.remove(bitmap)) {
+                mBitmapPool.put(bitmap);
+            }
+        }
     }
 
 
-    // Downloads flickr photo and stores it in memory and file cache
-    private int downloadFlickrPhoto(FlickrPhoto photo) {
-        Bitmap bitmap = getBitmap(photo.imageResourceLink);
+    // Called on eviction, from any thread
+    private void poolWhenReleased(Bitmap bitmap) {
+        synchronized (mBoundCounts) {
+            if (mBoundCounts.containsKey(bitmap)) {
+                mEvictedWhileBound.add(bitmap);
+            }
+            else {
+                mBitmapPool.put(bitmap);
+            }
+        }
+    }
+
+
+    // Downloads flickr photo and stores it in memory and file cache.
+    // Blocking, call only from a background thread. Returns null on failure.
+    // Only one load per photo and size runs at a time, other callers wait for its result.
+    // Look ahead loads go to the look ahead cache instead of the main one.
+    @Override
+    public Bitmap loadPhoto(FlickrPhoto photo, final int targetWidth, final int targetHeight,
+                            final boolean lookAhead) {
+        final String url = photo.imageResourceLink;
+        final String key = CacheKeys.memoryKey(url, targetWidth, targetHeight);
+        Bitmap bitmap = lookAhead ? peekFromMemory(key) : getFromMemory(key);
         if (bitmap != null) {
-            mImageLruCache.put(photo.imageResourceLink, bitmap);
-            return 0;
+            return bitmap;
         }
-        return 1;
+
+        bitmap = mDecodes.run(key, new Callable<Bitmap>() {
+            @Override
+            public Bitmap call() throws Exception {
+                Bitmap b = getBitmap(url, targetWidth, targetHeight);
+                if (b != null) {
+                    (lookAhead ? mLookAheadLruCache : mImageLruCache).put(key, b);
+                }
+                return b;
+            }
+        });
+
+        // May have joined a look ahead decode of the same photo
+        if (bitmap != null && !lookAhead) {
+            promote(key, bitmap);
+        }
+        return bitmap;
     }
 
 
-    // Gets Bitmap by downloading it using HttpUrlConnection
-    // And stores them in the cache directory
-    private Bitmap getBitmap(String url) {
+    // Looks up both memory caches. A look ahead photo moves to the main cache.
+    private Bitmap getFromMemory(String key) {
+        Bitmap bitmap = mImageLruCache.get(key);
+        if (bitmap == null) {
+            bitmap = mLookAheadLruCache.get(key);
+            if (bitmap != null) {
+                promote(key, bitmap);
+            }
+        }
+        return bitmap;
+    }
+
+
+    // Looks up both memory caches without moving anything. Neither recency nor the
+    // hit counts change, so look ahead probes do not show up in the main tier's stats.
+    private Bitmap peekFromMemory(String key) {
+        Bitmap bitmap = mImageLruCache.peek(key);
+        return bitmap != null ? bitmap : mLookAheadLruCache.peek(key);
+    }
 
 
-        if (mCacheDir != null && !mCacheDir.exists()) {
+    private void promote(String key, Bitmap bitmap) {
+        mLookAheadLruCache.remove(key);
+        mImageLruCache.put(key, bitmap);
+    }
+
+
+    // Gets the compressed photo from memory, disk or the network and decodes it
+    private Bitmap getBitmap(String url, int reqWidth, int reqHeight) {
+        byte[] data = mPhotoStore.get(url);
+        return data != null ? decodeBytes(data, data.length, reqWidth, reqHeight) : null;
+    }
+
+
+    // True if the photo is downloaded already, so loading it needs no network.
+    // Does not wait for the disk cache; before it is open only pending writes count.
+    public boolean isDownloaded(String url) {
+        return mPhotoStore.isDownloaded(url);
+    }
+
+
+    // Cold photos are decoded from memory (true, default) or written to disk and read back (false)
+    public void setStreamingDecode(boolean streamingDecode) {
+        mPhotoStore.setStreaming(streamingDecode);
+    }
+
+
+    // Times the decode. Images that fail to decode are counted.
+    private Bitmap decodeBytes(byte[] data, int length, int reqWidth, int reqHeight) {
+        long startTime = System.nanoTime();
+        Bitmap bitmap = decodeBytesUntimed(data, length, reqWidth, reqHeight);
+        if (bitmap != null) {
+            mDecodeTimes.recordSince(startTime);
+        }
+        else {
+            mDecodeErrors.increment();
+        }
+        return bitmap;
+    }
+
+
+    // decodes image and scales it to reduce memory consumption.
+    // Bitmap is never smaller than the requested size unless the image itself is.
+    // Both decode passes work on the same in memory copy of the file.
+    private Bitmap decodeBytesUntimed(byte[] data, int length, int reqWidth, int reqHeight) {
+        BitmapFactory.Options o = new BitmapFactory.Options();
+        o.inTempStorage = sDecodeTempStorage.get();
+        o.inJustDecodeBounds = true;
+        BitmapFactory.decodeByteArray(data, 0, length, o);
+        if (o.outWidth <= 0 || o.outHeight <= 0) {
             return null;
         }
 
-        //Hashcode of the url is used as the name of the file on SD card
-        String filename = String.valueOf(url.hashCode());
-        File f = new File(mCacheDir, filename);
+        o.inPreferredConfig = getConfig(o.outMimeType);
+        // Dithering hides the banding RGB_565 would show in smooth gradients
+        o.inDither = o.inPreferredConfig == Bitmap.Config.RGB_565;
+
+        int scale = calculateInSampleSize(o.outWidth, o.outHeight, reqWidth, reqHeight);
+        int width_tmp = (o.outWidth + scale - 1) / scale;
+        int height_tmp = (o.outHeight + scale - 1) / scale;
 
-        //from SD cache
-        Bitmap b = decodeFile(f);
-        if (b != null)
-            return b;
-        //from web
+        o.inSampleSize = scale;
+        o.inJustDecodeBounds = false;
+        o.inMutable = true;
+        o.inBitmap = getReusableBitmap(o, width_tmp, height_tmp);
+
+        Bitmap bitmap;
         try {
-            Bitmap bitmap = null;
-
-            URL urlObj;
-            HttpURLConnection httpUrlConnection;
-            urlObj = new URL(url);
-            httpUrlConnection = (HttpURLConnection) urlObj.openConnection();
-            httpUrlConnection.connect();
-            int httpResponseCode = httpUrlConnection.getResponseCode();
-
-            if (httpResponseCode == 200) {
-                InputStream is = httpUrlConnection.getInputStream();
-                OutputStream os = new FileOutputStream(f);
-                copyStream(is, os);
-                os.close();
-                bitmap = decodeFile(f);
+            bitmap = BitmapFactory.decodeByteArray(data, 0, length, o);
+        } catch (IllegalArgumentException e) {
+            // Pooled bitmap did not fit after all. Decode into a new bitmap.
+            if (o.inBitmap == null) {
+                throw e;
             }
+            o.inBitmap = null;
+            bitmap = BitmapFactory.decodeByteArray(data, 0, length, o);
+        }
+
+        return mExactScaling ? scaleToTarget(bitmap, reqWidth, reqHeight) : bitmap;
+    }
+
+
+    // Config to decode an image of the given mime type to, following the pixel format policy
+    private Bitmap.Config getConfig(String mimeType) {
+        if (mPixelFormatPolicy == PixelFormatPolicy.RGB_565_IF_OPAQUE && "image/jpeg".equals(mimeType)) {
+            return Bitmap.Config.RGB_565;
+        }
+        return Bitmap.Config.ARGB_8888;
+    }
+
+
+    // Largest power of two sample size that keeps both sides at least as big as
+    // requested. Tiles are centerCrop, so both sides have to cover the target.
+    static int calculateInSampleSize(int width, int height, int reqWidth, int reqHeight) {
+        int scale = 1;
+        if (reqWidth <= 0 || reqHeight <= 0) {
+            return scale;
+        }
+
+        while ((width / (scale * 2)) >= reqWidth && (height / (scale * 2)) >= reqHeight) {
+            scale *= 2;
+        }
+        return scale;
+    }
+
+
+    // Scales bitmap down so it just covers the target (centerCrop). Never scales up.
+    private Bitmap scaleToTarget(Bitmap bitmap, int reqWidth, int reqHeight) {
+        if (bitmap == null || reqWidth <= 0 || reqHeight <= 0) {
+            return bitmap;
+        }
+
+        float scale = Math.max((float) reqWidth / bitmap.getWidth(), (float) reqHeight / bitmap.getHeight());
+        if (scale >= 1f) {
             return bitmap;
-        } catch (IOException ex) {
-            ex.printStackTrace();
+        }
+
+        int width = Math.max(reqWidth, Math.round(bitmap.getWidth() * scale));
+        int height = Math.max(reqHeight, Math.round(bitmap.getHeight() * scale));
+        Bitmap scaled = Bitmap.createScaledBitmap(bitmap, width, height, true);
+        if (scaled != bitmap) {
+            // Sampled bitmap was never shown, so it can be reused straight away
+            mBitmapPool.put(bitmap);
+        }
+        return scaled;
+    }
+
+
+    // Picks a pooled bitmap that can hold the decoded image, or null
+    private Bitmap getReusableBitmap(BitmapFactory.Options o, int width, int height) {
+        // Below KitKat inBitmap only works for same sized bitmaps and no sampling
+        if (Build.VERSION.SDK_INT < Build.VERSION_CODES.KITKAT && o.inSampleSize != 1) {
             return null;
         }
+
+        Bitmap.Config config = o.inPreferredConfig != null ? o.inPreferredConfig : Bitmap.Config.ARGB_8888;
+        return mBitmapPool.get(width, height, config);
     }
 
 
-    private void copyStream(InputStream inputStream, OutputStream outputStream){
-        final int buffer_size = 1024;
-        try
-        {
-            byte[] bytes = new byte[buffer_size];
-            for(;;)
-            {
-                int count = inputStream.read(bytes, 0, buffer_size);
-                if(count == -1)
-                    break;
-                outputStream.write(bytes, 0, count);
-            }
+    /**
+     * Counters of one memory tier, as reported by its LruCache.
+     */
+    public static class TierStats {
+        public final String name;
+        public final int size;
+        public final int maxSize;
+        public final int hitCount;
+        public final int missCount;
+        public final int evictionCount;
+
+        TierStats(String name, SizedLruCache<String, ?> cache) {
+            this.name = name;
+            this.size = cache.size();
+            this.maxSize = cache.maxSize();
+            this.hitCount = cache.hitCount();
+            this.missCount = cache.missCount();
+            this.evictionCount = cache.evictionCount();
         }
-        catch(Exception ex){
-            ex.printStackTrace();
+
+        @Override
+        public String toString() {
+            int accesses = hitCount + missCount;
+            int hitPercent = accesses != 0 ? (100 * hitCount / accesses) : 0;
+            return name + "[size=" + size + ",maxSize=" + maxSize + ",hits=" + hitCount
+                    + ",misses=" + missCount + ",hitRate=" + hitPercent + "%,evictions=" + evictionCount + "]";
         }
     }
 
 
-    // decodes image and scales it to reduce memory consumption
-    private Bitmap decodeFile(File f){
-        try {
+    // Target of an imageview, kept in the imageview's tag so it lives as long as the view
+    private static PhotoTarget getTarget(ImageView imageView) {
+        PhotoTarget target = (PhotoTarget) imageView.getTag(R.id.tag_photo_request);
+        if (target == null) {
+            target = new ImageViewTarget(imageView);
+            imageView.setTag(R.id.tag_photo_request, target);
+        }
+        return target;
+    }
 
-            BitmapFactory.Options o = new BitmapFactory.Options();
-            o.inJustDecodeBounds = true;
-            BitmapFactory.decodeStream(new FileInputStream(f), null, o);
 
-            //Find the correct scale value.
-            final int REQUIRED_SIZE = 256;
-            int width_tmp = o.outWidth, height_tmp = o.outHeight;
-            int scale = 1;
+    private static class ImageViewTarget implements PhotoTarget {
+        private final ImageView mImageView;
+        private Object mRequest;
+        private Bitmap mBoundPhoto;
 
-            while(true){
-                if(width_tmp/2<REQUIRED_SIZE || height_tmp/2<REQUIRED_SIZE)
-                    break;
-                width_tmp /= 2;
-                height_tmp /= 2;
-                scale *= 2;
-            }
+        ImageViewTarget(ImageView imageView) {
+            mImageView = imageView;
+        }
 
-            o.inSampleSize = scale;
-            o.inJustDecodeBounds = false;
-            return BitmapFactory.decodeStream(new FileInputStream(f), null, o);
-        } catch (FileNotFoundException e) {
-            e.printStackTrace();
+        @Override
+        public void onPhotoLoaded(Bitmap bitmap) {
+            mImageView.setImageBitmap(bitmap);
+        }
+
+        @Override
+        public Object getPhotoRequest() {
+            return mRequest;
+        }
+
+        @Override
+        public void setPhotoRequest(Object request) {
+            mRequest = request;
+        }
+
+        @Override
+        public Bitmap getBoundPhoto() {
+            return mBoundPhoto;
+        }
+
+        @Override
+        public void setBoundPhoto(Bitmap bitmap) {
+            mBoundPhoto = bitmap;
         }
-        return null;
     }
 
 
     /**
-     * Lazy loading images in case they are not found in local cache
+     * A lazy load for one target, held by the target while it is pending.
+     * Holds the target weakly, so a pending load does not keep a destroyed view alive.
      */
-    private class PhotoLazyLoaderTask extends AsyncTask<Void, Void, Bitmap> {
+    private static class PhotoRequest {
+        final String key;
+        final WeakReference<PhotoTarget> target;
 
-        private Activity activity;
-        private ImageView imageView;
-        private FlickrPhoto photo;
+        PhotoRequest(String key, PhotoTarget target) {
+            this.key = key;
+            this.target = new WeakReference<PhotoTarget>(target);
+        }
+    }
 
-        public PhotoLazyLoaderTask(ImageView imageView, FlickrPhoto photo) {
-            this.activity = activity;
-            this.imageView = imageView;
-            this.photo = photo;
 
+    /**
+     * Reports the photo store's stages to the pipeline metrics.
+     */
+    private class MetricsListener extends EncodedPhotoStore.Listener {
+        @Override
+        public void onDiskHit() {
+            mDiskHits.increment();
         }
+
         @Override
-        protected Bitmap doInBackground(Void... voids) {
-            Bitmap bitmap = getBitmap(photo.imageResourceLink);
-            if (bitmap != null) {
-                mImageLruCache.put(photo.imageResourceLink, bitmap);
-            }
-            return bitmap;
+        public void onDiskMiss() {
+            mDiskMisses.increment();
         }
 
+        @Override
+        public void onDiskError() {
+            mDiskErrors.increment();
+        }
 
         @Override
-        protected void onPostExecute(Bitmap bitmap) {
-            super.onPostExecute(bitmap);
+        public void onNetworkError() {
+            mNetworkErrors.increment();
+        }
 
-            if (bitmap != null) {
-                imageView.setImageBitmap(bitmap);
-            }
+        @Override
+        public void onNetworkDone(long startNanos) {
+            mNetworkTimes.recordSince(startNanos);
+        }
+
+        @Override
+        public void onDiskReadDone(long startNanos) {
+            mDiskReadTimes.recordSince(startNanos);
+        }
+
+        @Override
+        public void onDiskWriteDone(long startNanos) {
+            mDiskWriteTimes.recordSince(startNanos);
         }
     }
 }
@@ -0,0 +1,107 @@
+package com.sudarshanbhat.memorygame;
+
+import android.os.Build;
+import android.util.Log;
+import android.view.Choreographer;
+
+/**
+ * Measures the frames of a transition, such as a phase change of the game, from
+ * start() to stop(). Every frame interval goes into the "frame.interval" histogram
+ * and frames that missed their vsync are counted in "frame.dropped". Debug builds
+ * also log a summary. Needs Choreographer, so it does nothing below API 16.
+ * Main thread only.
+ */
+public class FrameTimer {
+
+    private static final String TAG = "FrameTimer";
+
+    // 60Hz. An interval more than half a vsync late means a frame was dropped.
+    private static final long VSYNC_NANOS = 1000000000L / 60;
+    private static final long JANK_NANOS = VSYNC_NANOS * 3 / 2;
+
+    private final String mName;
+    private final PipelineMetrics.Histogram mFrameIntervals = PipelineMetrics.getInstance().histogram("frame.interval");
+    private final PipelineMetrics.Counter mDroppedFrames = PipelineMetrics.getInstance().counter("frame.dropped");
+
+    // Only created from API 16, so older devices never load Choreographer
+    private Object mCallback;
+
+    private long mLastFrameNanos = 0;
+    private int mFrameCount = 0;
+    private int mDroppedCount = 0;
+    private long mMaxIntervalNanos = 0;
+
+    private FrameTimer(String name) {
+        mName = name;
+    }
+
+
+    public static FrameTimer start(String name) {
+        FrameTimer timer = new FrameTimer(name);
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.JELLY_BEAN) {
+            FrameCallback callback = timer.new FrameCallback();
+            timer.mCallback = callback;
+            Choreographer.getInstance().postFrameCallback(callback);
+        }
+        return timer;
+    }
+
+
+    // Stops measuring. Calling it again does nothing.
+    public void stop() {
+        if (mCallback == null) {
+            return;
+        }
+        Choreographer.getInstance().removeFrameCallback((FrameCallback) mCallback);
+        mCallback = null;
+
+        if (BuildConfig.DEBUG) {
+            Log.d(TAG, mName + ": " + mFrameCount + " frames, max " + (mMaxIntervalNanos / 1000) + "us, dropped "
+                    + mDroppedCount);
+        }
+    }
+
+
+    // Frames measured so far, not counting the first, which has no interval
+    public int getFrameCount() {
+        return mFrameCount;
+    }
+
+
+    public int getDroppedCount() {
+        return mDroppedCount;
+    }
+
+
+    public long getMaxIntervalNanos() {
+        return mMaxIntervalNanos;
+    }
+
+
+    private void onFrame(long frameTimeNanos) {
+        if (mLastFrameNanos != 0) {
+            long interval = frameTimeNanos - mLastFrameNanos;
+            mFrameIntervals.record(interval);
+            mMaxIntervalNanos = Math.max(mMaxIntervalNanos, interval);
+            if (interval > JANK_NANOS) {
+                int dropped = (int) ((interval + VSYNC_NANOS / 2) / VSYNC_NANOS) - 1;
+                mDroppedCount += dropped;
+                mDroppedFrames.add(dropped);
+            }
+            mFrameCount++;
+        }
+        mLastFrameNanos = frameTimeNanos;
+    }
+
+
+    private class FrameCallback implements Choreographer.FrameCallback {
+        @Override
+        public void doFrame(long frameTimeNanos) {
+            if (mCallback != this) {
+                return;
+            }
+            onFrame(frameTimeNanos);
+            Choreographer.getInstance().postFrameCallback(this);
+        }
+    }
+}
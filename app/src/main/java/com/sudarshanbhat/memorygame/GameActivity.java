@@ -10,6 +10,8 @@ public class GameActivity extends Activity {
 
     @Override
     protected void onCreate(Bundle savedInstanceState) {
+        StartupTrace.onActivityCreated();
+        StartupTrace.beginSection("GameActivity.onCreate");
         super.onCreate(savedInstanceState);
         setContentView(R.layout.game_activity_layout);
         if (savedInstanceState == null) {
@@ -20,5 +22,6 @@ public class GameActivity extends Activity {
                     .add(R.id.container, new GameFragment())
                     .commit();
         }
+        StartupTrace.endSection();
     }
 }
@@ -15,45 +15,57 @@ import android.view.MenuInflater;
 import android.view.MenuItem;
 import android.view.View;
 import android.view.ViewGroup;
-import android.widget.AdapterView;
-import android.widget.GridView;
+import android.view.ViewTreeObserver;
 import android.widget.ImageView;
 import android.widget.ProgressBar;
 import android.widget.TextView;
 import android.widget.Toast;
 
+import com.sudarshanbhat.memorygame.core.FlickrPhoto;
+import com.sudarshanbhat.memorygame.core.GameBoard;
+
+import java.io.File;
 import java.util.ArrayList;
 import java.util.Random;
 
 /**
  * Created by sudarshan on 8/21/14.
  */
-public class GameFragment extends Fragment implements GameHelperFragment.FlickrPhotoDownloadListener, AdapterView.OnItemClickListener {
+public class GameFragment extends Fragment implements GameHelperFragment.FlickrPhotoDownloadListener, BoardView.OnTileClickListener {
 
     // Constants
-    public static final int MAX_TILES = 9;
     public static final int COUNTDOWN_TIME = 15; // seconds
 
+    // Board is boardSize x boardSize tiles
+    public static final int DEFAULT_BOARD_SIZE = 3;
+    public static final int MAX_BOARD_SIZE = 8;
+    public static final int MAX_TILE_COUNT = MAX_BOARD_SIZE * MAX_BOARD_SIZE;
+
     // Views
     private View mRootView;
-    private GridView mMemoryGridView;
+    private BoardView mBoardView;
     private TextView mGameHelpTextView;
     private ImageView mQuizImageView;
     private ProgressBar mGridProgressBar;
 
-    // Data and grid adapter
+    // Photos of the board
     private ArrayList<FlickrPhoto> mFlickrPhotos;
-    private FlickrPhotoAdapter mFlickrPhotoAdapter;
 
     // FlickrPhotos are cached.
     private FlickrPhotoCache mDownloader;
 
-    // Position of the photo currently being quizzed
-    private int mQuizPhotoPosition = -1;
+    // Pipeline metrics over the game, debug builds only
+    private DebugOverlay mDebugOverlay;
+
+    // Tiles per row and column, kept by the helper fragment
+    private int mBoardSize = DEFAULT_BOARD_SIZE;
+
+    // Hidden tiles, the tile being quizzed and wrong moves made
+    // Shuffles every board's quiz order
+    private final Random mRandom = new Random();
+    private GameBoard mBoard = new GameBoard(0, mRandom);
     private int mCountDownValue = 0;
 
-    // Total number of wrong moves made
-    private int mWrongMoveCount = 0;
     private long mTotalTimeTaken = 0;
     private boolean mResultsShown = false;
 
@@ -65,6 +77,8 @@ public class GameFragment extends Fragment implements GameHelperFragment.FlickrP
         super.onCreate(savedInstanceState);
         setHasOptionsMenu(true);
         mDownloader = FlickrPhotoCache.getInstance(getActivity().getApplicationContext());
+        // Saved size is read in the background; onBoardSizeLoaded() switches to it
+        mBoardSize = getHelperFragment().getBoardSize();
         mShortAnimationDuration = getResources().getInteger(
                 android.R.integer.config_shortAnimTime);
     }
@@ -73,33 +87,35 @@ public class GameFragment extends Fragment implements GameHelperFragment.FlickrP
     @Override
     public View onCreateView(LayoutInflater inflater, ViewGroup container, Bundle savedInstanceState) {
         mRootView = inflater.inflate(R.layout.game_fragment_layout, container, false);
-        mMemoryGridView = (GridView) mRootView.findViewById(R.id.memory_grid);
+        mBoardView = (BoardView) mRootView.findViewById(R.id.board_view);
         mGameHelpTextView = (TextView) mRootView.findViewById(R.id.game_help_text);
         mQuizImageView = (ImageView) mRootView.findViewById(R.id.quiz_imageview);
         mGridProgressBar = (ProgressBar) mRootView.findViewById(R.id.grid_progressbar);
+        mDebugOverlay = new DebugOverlay((TextView) mRootView.findViewById(R.id.debug_overlay), mDownloader);
 
-        // Set size of the grid by getting the screen width. Important specially in landscape.
-        int gridSize = getGridSize();
-        ViewGroup.LayoutParams params = mMemoryGridView.getLayoutParams();
-        params.width = gridSize;
-        params.height = gridSize;
-        mMemoryGridView.setLayoutParams(params);
-        mMemoryGridView.setOnItemClickListener(this);
+        layoutGrid();
+        mBoardView.setOnTileClickListener(this);
 
         // Restore instance state
         if (savedInstanceState == null) {
             mFlickrPhotos = new ArrayList<FlickrPhoto>();
         }
         else {
-            mFlickrPhotos = savedInstanceState.getParcelableArrayList("flickr_photos");
-            mQuizPhotoPosition = savedInstanceState.getInt("selected_photo_position");
+            mFlickrPhotos = restorePhotos(savedInstanceState);
+            mBoard = new GameBoard(savedInstanceState.getInt("tile_count"),
+                    savedInstanceState.getIntArray("quiz_order"),
+                    savedInstanceState.getInt("quiz_position"),
+                    savedInstanceState.getInt("selected_photo_position"),
+                    savedInstanceState.getInt("wrong_move_count"), mRandom);
             mCountDownValue = savedInstanceState.getInt("countdown_value");
             mTotalTimeTaken = savedInstanceState.getLong("total_time_taken");
-            mWrongMoveCount = savedInstanceState.getInt("wrong_move_count");
             mResultsShown = savedInstanceState.getBoolean("results_shown");
 
-            if(mQuizPhotoPosition != -1) {
-                mDownloader.applyPhoto(mQuizImageView, mFlickrPhotos.get(mQuizPhotoPosition));
+            if(mBoard.getQuizTile() != GameBoard.NO_TILE) {
+                int tileSize = getTileSize();
+                FlickrPhoto photo = mFlickrPhotos.get(mBoard.getQuizTile());
+                mQuizImageView.setContentDescription(photo.imageTitle);
+                mDownloader.applyPhoto(mQuizImageView, photo, tileSize, tileSize, PhotoLoadScheduler.PRIORITY_QUIZ);
                 showHelpText(R.string.help_text_quiz);
             }
             else if (mResultsShown) {
@@ -111,10 +127,13 @@ public class GameFragment extends Fragment implements GameHelperFragment.FlickrP
             }
 
             showLoadingIndicator(savedInstanceState.getBoolean("progress_bar_visibility"));
+
+            if (BuildConfig.DEBUG && savedInstanceState.getBoolean("debug_overlay_shown")) {
+                mDebugOverlay.show();
+            }
         }
 
-        mFlickrPhotoAdapter = new FlickrPhotoAdapter(getActivity(), mFlickrPhotos, getTileSize());
-        mMemoryGridView.setAdapter(mFlickrPhotoAdapter);
+        mBoardView.setBoard(mFlickrPhotos, mBoard, mBoardSize, getTileSize());
 
         // Set download response listener with helper fragment
         GameHelperFragment helperFragment =
@@ -129,6 +148,19 @@ public class GameFragment extends Fragment implements GameHelperFragment.FlickrP
     public void onCreateOptionsMenu(Menu menu, MenuInflater inflater) {
         super.onCreateOptionsMenu(menu, inflater);
         inflater.inflate(R.menu.game, menu);
+        menu.findItem(getBoardSizeItemId(mBoardSize)).setChecked(true);
+        if (BuildConfig.DEBUG) {
+            menu.findItem(R.id.action_debug_overlay).setVisible(true);
+            menu.findItem(R.id.action_dump_trace).setVisible(true);
+        }
+    }
+
+    @Override
+    public void onPrepareOptionsMenu(Menu menu) {
+        super.onPrepareOptionsMenu(menu);
+        if (mDebugOverlay != null) {
+            menu.findItem(R.id.action_debug_overlay).setChecked(mDebugOverlay.isShown());
+        }
     }
 
     @Override
@@ -137,6 +169,32 @@ public class GameFragment extends Fragment implements GameHelperFragment.FlickrP
             case R.id.action_new_game:
                 startNewGame();
                 break;
+            case R.id.action_debug_overlay:
+                if (mDebugOverlay.isShown()) {
+                    mDebugOverlay.hide();
+                }
+                else {
+                    mDebugOverlay.show();
+                }
+                break;
+            case R.id.action_dump_trace:
+                dumpTrace();
+                break;
+            case R.id.board_size_3:
+                setBoardSize(3);
+                break;
+            case R.id.board_size_4:
+                setBoardSize(4);
+                break;
+            case R.id.board_size_5:
+                setBoardSize(5);
+                break;
+            case R.id.board_size_6:
+                setBoardSize(6);
+                break;
+            case R.id.board_size_8:
+                setBoardSize(8);
+                break;
         }
         return super.onOptionsItemSelected(item);
     }
@@ -153,13 +211,28 @@ public class GameFragment extends Fragment implements GameHelperFragment.FlickrP
     @Override
     public void onSaveInstanceState(Bundle outState) {
         super.onSaveInstanceState(outState);
-        outState.putParcelableArrayList("flickr_photos", mFlickrPhotos);
-        outState.putInt("selected_photo_position", mQuizPhotoPosition);
+        savePhotos(outState, mFlickrPhotos);
+        outState.putInt("tile_count", mBoard.getTileCount());
+        outState.putIntArray("quiz_order", mBoard.getQuizOrder());
+        outState.putInt("quiz_position", mBoard.getQuizPosition());
+        outState.putInt("selected_photo_position", mBoard.getQuizTile());
         outState.putInt("countdown_value", mCountDownValue);
         outState.putBoolean("progress_bar_visibility", mGridProgressBar.getVisibility() == View.VISIBLE);
         outState.putLong("total_time_taken", mTotalTimeTaken);
-        outState.putInt("wrong_move_count", mWrongMoveCount);
+        outState.putInt("wrong_move_count", mBoard.getWrongMoveCount());
         outState.putBoolean("results_shown", mResultsShown);
+        outState.putBoolean("debug_overlay_shown", mDebugOverlay.isShown());
+    }
+
+    @Override
+    public void onDestroyView() {
+        // Views are gone: loads still queued for them are not needed any more,
+        // and the photos they showed can be reused
+        mDownloader.releasePhoto(mQuizImageView);
+        mBoardView.releasePhotos();
+        // Keeps refreshing otherwise
+        mDebugOverlay.hide();
+        super.onDestroyView();
     }
 
 
@@ -167,10 +240,54 @@ public class GameFragment extends Fragment implements GameHelperFragment.FlickrP
         mResultsShown = false;
         cancelTimer();
         hideFlickrPhoto();
-        getHelperFragment().loadPhotos(); // Response of this is returned in onResponse() method here
+        getHelperFragment().loadPhotos(getTileSize(), getTileCount()); // Response of this is returned in onResponse() method here
         showLoadingIndicator(true);
     }
 
+
+    // Switches to a boardSize x boardSize board and starts a new game on it
+    private void setBoardSize(int boardSize) {
+        if (boardSize == mBoardSize) {
+            return;
+        }
+
+        getHelperFragment().saveBoardSize(boardSize);
+        switchBoardSize(boardSize);
+    }
+
+
+    // Cold start begins at the default size; the saved one arrives before any board is shown
+    @Override
+    public void onBoardSizeLoaded(int boardSize) {
+        if (getActivity() == null || boardSize == mBoardSize) {
+            return;
+        }
+        switchBoardSize(boardSize);
+    }
+
+
+    private void switchBoardSize(int boardSize) {
+        mBoardSize = boardSize;
+        getActivity().invalidateOptionsMenu();
+
+        mFlickrPhotos.clear();
+        mBoard = new GameBoard(0, mRandom);
+        layoutGrid();
+        mBoardView.setBoard(mFlickrPhotos, mBoard, mBoardSize, getTileSize());
+
+        startNewGame();
+    }
+
+
+    // Sizes the grid for the board size. Grid is square, sized from the screen. Important specially in landscape.
+    private void layoutGrid() {
+        int gridSize = getGridSize();
+        ViewGroup.LayoutParams params = mBoardView.getLayoutParams();
+        params.width = gridSize;
+        params.height = gridSize;
+        mBoardView.setLayoutParams(params);
+    }
+
     @Override
     public void onResponse(ArrayList<FlickrPhoto> photos) {
         if (getActivity() == null) {
@@ -182,9 +299,22 @@ public class GameFragment extends Fragment implements GameHelperFragment.FlickrP
         mRootView.setVisibility(View.VISIBLE);
         mFlickrPhotos.clear();
         mFlickrPhotos.addAll(photos);
-        mFlickrPhotoAdapter.notifyDataSetChanged();
+        mBoard = new GameBoard(Math.min(getTileCount(), photos.size()), mRandom);
+        mBoardView.setBoard(mFlickrPhotos, mBoard, mBoardSize, getTileSize());
+
+        final ViewTreeObserver observer = mBoardView.getViewTreeObserver();
+        observer.addOnPreDrawListener(new ViewTreeObserver.OnPreDrawListener() {
+            @Override
+            public boolean onPreDraw() {
+                if (observer.isAlive()) {
+                    observer.removeOnPreDrawListener(this);
+                }
+                StartupTrace.onFirstGridFrame();
+                return true;
+            }
+        });
 
-        mRootView.animate().alpha(1f).setDuration(mShortAnimationDuration).setListener(null);
+        fadeRoot(1f, "GameFragment.showBoard");
         startTimer();
     }
 
@@ -219,23 +349,28 @@ public class GameFragment extends Fragment implements GameHelperFragment.FlickrP
         startQuiz();
     }
 
-    // Quiz is where user is asked to show the position for the photo
+    // Quiz is where user is asked to show the position for the photo.
+    // The board's tiles fade to hidden on their own, the rest of the screen stays put.
     private void startQuiz() {
-        mQuizPhotoPosition = 0;
         mTotalTimeTaken = System.currentTimeMillis();
-        mWrongMoveCount = 0;
-        mRootView.animate().alpha(0.0f)
+        showHelpText(R.string.help_text_quiz);
+        hideAllTiles();
+        showRandomFlickrPhoto();
+    }
+
+
+    // Fades the whole screen on a hardware layer, so each frame only composites the
+    // layer instead of redrawing every view offscreen. Frames are measured under traceName.
+    private void fadeRoot(float alpha, String traceName) {
+        final FrameTimer frameTimer = FrameTimer.start(traceName);
+        mRootView.setLayerType(View.LAYER_TYPE_HARDWARE, null);
+        mRootView.animate().alpha(alpha)
                 .setDuration(mShortAnimationDuration)
                 .setListener(new AnimatorListenerAdapter() {
                     @Override
                     public void onAnimationEnd(Animator animation) {
-                        showHelpText(R.string.help_text_quiz);
-                        hideAllTiles();
-                        showRandomFlickrPhoto();
-                        mRootView.animate()
-                                .alpha(1f)
-                                .setDuration(mShortAnimationDuration)
-                                .setListener(null);
+                        mRootView.setLayerType(View.LAYER_TYPE_NONE, null);
+                        frameTimer.stop();
                     }
                 });
     }
@@ -243,8 +378,8 @@ public class GameFragment extends Fragment implements GameHelperFragment.FlickrP
 
     private void endQuiz() {
         mQuizImageView.setVisibility(View.GONE);
-        mQuizImageView.setImageResource(0);
-        mQuizPhotoPosition = -1;
+        mDownloader.releasePhoto(mQuizImageView);
+        mBoard.endQuiz();
         mTotalTimeTaken = (System.currentTimeMillis() - mTotalTimeTaken)/1000;
 
         // Show results
@@ -254,64 +389,104 @@ public class GameFragment extends Fragment implements GameHelperFragment.FlickrP
 
     // Shows a random photo from to user asking user to point the location
     private void showRandomFlickrPhoto() {
-        Random random = new Random(System.currentTimeMillis());
-
-        int randomValue = 0;
-        do {
-            randomValue = random.nextInt(MAX_TILES);
-        } while (!mFlickrPhotos.get(randomValue).isHidden);
-
-        FlickrPhoto photo = mFlickrPhotos.get(randomValue);
+        FlickrPhoto photo = mFlickrPhotos.get(mBoard.nextQuizTile());
+        int tileSize = getTileSize();
         ViewGroup.LayoutParams params = mQuizImageView.getLayoutParams();
-        params.width = getTileSize();
-        params.height = getTileSize();
+        params.width = tileSize;
+        params.height = tileSize;
         mQuizImageView.setLayoutParams(params);
 
-        mQuizPhotoPosition = randomValue;
         mQuizImageView.setVisibility(View.VISIBLE);
-        mDownloader.applyPhoto(mQuizImageView, photo);
+        // Accessibility services read the title, to be matched with the revealed tiles'
+        mQuizImageView.setContentDescription(photo.imageTitle);
+
+        // Quiz image has the same size as a tile, so it shares the tile's cached bitmap
+        mDownloader.applyPhoto(mQuizImageView, photo, tileSize, tileSize, PhotoLoadScheduler.PRIORITY_QUIZ);
     }
 
 
     private void hideFlickrPhoto() {
-        mQuizPhotoPosition = -1;
+        mDownloader.releasePhoto(mQuizImageView);
+        mBoard.endQuiz();
         mQuizImageView.setVisibility(View.GONE);
     }
 
     @Override
-    public void onItemClick(AdapterView<?> adapterView, View view, int position, long value) {
+    public void onTileClick(int position) {
 
-        if (position == mQuizPhotoPosition) {
+        // Wrong guesses are counted by the board
+        if (mBoard.guess(position)) {
             showTile(position);
-            for (int i = 0; i < Math.min(MAX_TILES, mFlickrPhotos.size()); i++) {
-                if (mFlickrPhotos.get(i).isHidden) {
-                    showRandomFlickrPhoto();
-                    return;
-                }
+            if (mBoard.hasHiddenTiles()) {
+                showRandomFlickrPhoto();
+                return;
             }
             endQuiz();
         }
-        else {
-            mWrongMoveCount ++;
-        }
     }
 
 
     private void showTile(int position) {
-        mFlickrPhotos.get(position).isHidden = false;
-        mFlickrPhotoAdapter.notifyDataSetChanged();
+        mBoardView.revealTile(position);
     }
 
     private void hideAllTiles() {
-        for (int i = 0; i < mFlickrPhotos.size(); i++) {
-            mFlickrPhotos.get(i).isHidden = true;
+        mBoard.hideAll();
+        mBoardView.hideAllTiles();
+    }
+
+
+    // Photos are plain core objects, so they are saved field by field
+    private static void savePhotos(Bundle outState, ArrayList<FlickrPhoto> photos) {
+        ArrayList<String> titles = new ArrayList<String>(photos.size());
+        ArrayList<String> links = new ArrayList<String>(photos.size());
+        ArrayList<String> urls = new ArrayList<String>(photos.size());
+        for (FlickrPhoto photo : photos) {
+            titles.add(photo.imageTitle);
+            links.add(photo.imageLink);
+            urls.add(photo.imageResourceLink);
+        }
+        outState.putStringArrayList("photo_titles", titles);
+        outState.putStringArrayList("photo_links", links);
+        outState.putStringArrayList("photo_urls", urls);
+    }
+
+
+    private static ArrayList<FlickrPhoto> restorePhotos(Bundle savedInstanceState) {
+        ArrayList<String> titles = savedInstanceState.getStringArrayList("photo_titles");
+        ArrayList<String> links = savedInstanceState.getStringArrayList("photo_links");
+        ArrayList<String> urls = savedInstanceState.getStringArrayList("photo_urls");
+        ArrayList<FlickrPhoto> photos = new ArrayList<FlickrPhoto>(urls.size());
+        for (int i = 0; i < urls.size(); i++) {
+            photos.add(new FlickrPhoto(titles.get(i), links.get(i), urls.get(i)));
+        }
+        return photos;
+    }
+
+
+    private int getTileCount() {
+        return mBoardSize * mBoardSize;
+    }
+
+
+    private static int getBoardSizeItemId(int boardSize) {
+        switch (boardSize) {
+            case 4:
+                return R.id.board_size_4;
+            case 5:
+                return R.id.board_size_5;
+            case 6:
+                return R.id.board_size_6;
+            case 8:
+                return R.id.board_size_8;
+            default:
+                return R.id.board_size_3;
         }
-        mFlickrPhotoAdapter.notifyDataSetChanged();
     }
 
 
     private int getGridSize() {
-        return (int) ((3 * getTileSize()) + (2 * getResources().getDimension(R.dimen.grid_spacing)));
+        return (int) ((mBoardSize * getTileSize()) + ((mBoardSize - 1) * getResources().getDimension(R.dimen.grid_spacing)));
     }
 
 
@@ -348,7 +523,8 @@ public class GameFragment extends Fragment implements GameHelperFragment.FlickrP
             shortestAvailableScreenWidth = Math.min(gridSize, shortestAvailableScreenWidth);
         }
 
-        int tileSize = (int) ((shortestAvailableScreenWidth - (getResources().getDimension(R.dimen.activity_horizontal_margin) * 2)) / 3);
+        int tileSize = (int) ((shortestAvailableScreenWidth - (getResources().getDimension(R.dimen.activity_horizontal_margin) * 2)
+                - ((mBoardSize - 1) * getResources().getDimension(R.dimen.grid_spacing))) / mBoardSize);
         return tileSize;
     }
 
@@ -380,7 +556,7 @@ public class GameFragment extends Fragment implements GameHelperFragment.FlickrP
 
     private void showResults() {
         mResultsShown = true;
-        mGameHelpTextView.setText(getString(R.string.help_text_result, mTotalTimeTaken, mWrongMoveCount));
+        mGameHelpTextView.setText(getString(R.string.help_text_result, mTotalTimeTaken, mBoard.getWrongMoveCount()));
     }
 
 
@@ -394,6 +570,26 @@ public class GameFragment extends Fragment implements GameHelperFragment.FlickrP
         }
     }
 
+    // Writes the pipeline trace and says where it went
+    private void dumpTrace() {
+        mDebugOverlay.dumpTrace(getActivity().getApplicationContext(), new DebugOverlay.TraceDumpListener() {
+            @Override
+            public void onTraceDumped(File file) {
+                if (getActivity() == null) {
+                    return;
+                }
+
+                if (file == null) {
+                    Toast.makeText(getActivity().getApplicationContext(), R.string.trace_dump_failed, Toast.LENGTH_SHORT).show();
+                }
+                else {
+                    Toast.makeText(getActivity().getApplicationContext(),
+                            getString(R.string.trace_dumped, file.getAbsolutePath()), Toast.LENGTH_LONG).show();
+                }
+            }
+        });
+    }
+
     private GameHelperFragment getHelperFragment() {
         return (GameHelperFragment) getFragmentManager()
                 .findFragmentByTag(GameHelperFragment.TAG);
@@ -1,20 +1,23 @@
 package com.sudarshanbhat.memorygame;
 
 import android.app.Fragment;
-import android.os.AsyncTask;
+import android.content.Context;
+import android.content.SharedPreferences;
 import android.os.Bundle;
 import android.os.CountDownTimer;
 
-import org.apache.http.util.ByteArrayBuffer;
-import org.json.JSONArray;
-import org.json.JSONException;
-import org.json.JSONObject;
+import com.sudarshanbhat.memorygame.core.FeedCache;
+import com.sudarshanbhat.memorygame.core.FlickrFeedParser;
+import com.sudarshanbhat.memorygame.core.FlickrHttpClient;
+import com.sudarshanbhat.memorygame.core.FlickrPhoto;
 
 import java.io.BufferedInputStream;
+import java.io.File;
 import java.io.IOException;
-import java.net.HttpURLConnection;
-import java.net.URL;
 import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.concurrent.Callable;
 
 /**
  * Created by sudarshan on 8/21/14.
@@ -22,9 +25,34 @@ import java.util.ArrayList;
 public class GameHelperFragment extends Fragment {
     public static final String TAG = "com.sudarshanbhat.memorygame.GAME_HELPER_FRAGMENT";
 
+    // Photos kept from each feed. More than a 3x3 board, so later boards can use the rest.
+    public static final int MAX_FEED_PHOTOS = 20;
+
     public static final String API_URL = "https://api.flickr.com/services/feeds/photos_public.gne?format=json&nojsoncallback=1";
 
+    // The public feed has no paging and returns at most 20 photos. Further pages are
+    // the public feed filtered by these tags, so big boards get enough distinct photos.
+    private static final String[] FEED_PAGE_TAGS = {
+            "landscape", "nature", "city", "animals", "architecture", "travel", "flowers", "sky"
+    };
+
+    // Feeds and used photos remembered by the feed cache, enough for two of the
+    // biggest boards, so the next board can always be picked from cached feeds
+    private static final int FEED_CACHE_MAX_FEEDS = Math.max(FeedCache.DEFAULT_MAX_FEEDS,
+            2 * GameFragment.MAX_TILE_COUNT / MAX_FEED_PHOTOS + 1);
+    private static final int FEED_CACHE_MAX_RECENTLY_USED = Math.max(FeedCache.DEFAULT_MAX_RECENTLY_USED,
+            2 * GameFragment.MAX_TILE_COUNT);
+
+    // Boards with more tiles than this decode to the exact tile size and load more
+    // photos at once; see applyBoardBudget()
+    private static final int SMALL_BOARD_TILE_COUNT = 16;
+    private static final int LARGE_BOARD_POOL_SIZE = 6;
+
+    private static final String PREF_BOARD_SIZE = "board_size";
+
     public interface FlickrPhotoDownloadListener {
+        // The board size the player picked last time, once it is read from disk
+        public void onBoardSizeLoaded(int boardSize);
         public void onResponse(ArrayList<FlickrPhoto> photos);
         public void onError();
         public void onTimerTick(int timeLeftInSecs);
@@ -32,9 +60,52 @@ public class GameHelperFragment extends Fragment {
     }
 
     private CountDownTimer mCountDownTimer;
-    private FlickrFeedFetchTask mFeedFetchTask;
+    private PhotoLoadScheduler.LoadTask<ArrayList<FlickrPhoto>> mFeedFetchTask;
+    private PhotoPrefetcher.PrefetchBatch mPrefetchBatch;
+    private int mTileSize;
+    private int mTileCount;
+
+    // Photos of each feed page from its last 200 response, by url. A page that comes
+    // back 304 Not Modified reuses these.
+    private final HashMap<String, ArrayList<FlickrPhoto>> mFeedPages = new HashMap<String, ArrayList<FlickrPhoto>>();
+
+    // Last few feeds and recently used photos, persisted across launches.
+    // Loaded in the background; a loadPhotos() call that comes earlier waits in
+    // mPendingTileSize until it is.
+    private FeedCache mFeedCache;
+    private File mFeedCacheFile;
+    private boolean mFeedCacheLoaded = false;
+    private int mPendingTileSize = 0;
+    private int mPendingTileCount = 0;
+
+    // Tiles per row and column, kept in the activity's preferences. Read in the
+    // background with the feed cache; the default until then, unless the player
+    // picks one first.
+    private SharedPreferences mPreferences;
+    private int mBoardSize = GameFragment.DEFAULT_BOARD_SIZE;
+    private boolean mBoardSizePicked = false;
+
+    private final FeedCache.PhotoFilter mDownloadedFilter = new FeedCache.PhotoFilter() {
+        @Override
+        public boolean accept(FlickrPhoto photo) {
+            return mDownloader.isDownloaded(photo.imageResourceLink);
+        }
+    };
+
+    // Next board, prepared by look ahead while the current game is played
+    private ArrayList<FlickrPhoto> mNextBoard;
+    private PhotoPrefetcher.PrefetchBatch mNextBoardBatch;
+    private int mNextBoardTileSize;
+    private int mNextBoardTileCount;
+    private boolean mNextBoardReady = false;
     private FlickrPhotoDownloadListener mListener;
 
+    private final PipelineMetrics.Histogram mFeedFetchTimes = PipelineMetrics.getInstance().histogram("feed.fetch");
+    private final PipelineMetrics.Counter mFeedErrors = PipelineMetrics.getInstance().counter("feed.errors");
+    // Next boards fully loaded ahead, and ones dropped because a photo did not load
+    private final PipelineMetrics.Counter mNextBoardsReady = PipelineMetrics.getInstance().counter("nextBoard.ready");
+    private final PipelineMetrics.Counter mNextBoardsPartial = PipelineMetrics.getInstance().counter("nextBoard.partial");
+
     FlickrPhotoCache mDownloader;
 
     @Override
@@ -43,27 +114,154 @@ public class GameHelperFragment extends Fragment {
 
         mDownloader = FlickrPhotoCache.getInstance(getActivity().getApplicationContext());
 
+        final File feedCacheFile = new File(getActivity().getCacheDir(), "feed_cache");
+        mFeedCacheFile = feedCacheFile;
+        // Only opening the preferences here; they are read from disk on first access
+        mPreferences = getActivity().getPreferences(Context.MODE_PRIVATE);
+        final SharedPreferences preferences = mPreferences;
+        PhotoLoadScheduler.getInstance().schedule(PhotoLoadScheduler.PRIORITY_QUIZ, this, new Callable<SavedState>() {
+            @Override
+            public SavedState call() {
+                StartupTrace.beginSection("GameHelperFragment.loadFeedCache");
+                try {
+                    int boardSize = preferences.getInt(PREF_BOARD_SIZE, GameFragment.DEFAULT_BOARD_SIZE);
+                    FeedCache feedCache = newFeedCache(feedCacheFile);
+                    feedCache.load();
+                    // Picking a board checks what is on disk
+                    mDownloader.awaitDiskCache();
+                    return new SavedState(feedCache, boardSize);
+                } finally {
+                    StartupTrace.endSection();
+                }
+            }
+        }, new PhotoLoadScheduler.Callback<SavedState>() {
+            @Override
+            public void onComplete(SavedState savedState) {
+                onSavedStateLoaded(savedState);
+            }
+        });
+
         // Headless fragment. Do not want it to be recreated on orientation change.
         // This fragment only helps in downloading photos from Flickr.
         setRetainInstance(true);
     }
 
 
+    @Override
+    public void onDestroy() {
+        super.onDestroy();
+        // Drop feed fetches and prefetches that were scheduled for this fragment
+        PhotoLoadScheduler.getInstance().cancel(this);
+        if (mPrefetchBatch != null) {
+            mPrefetchBatch.cancel();
+            mPrefetchBatch = null;
+        }
+        clearNextBoard();
+    }
+
+
     public void setFlickrPhotoDownloadListener(FlickrPhotoDownloadListener listener) {
         mListener = listener;
     }
 
 
-    public void loadPhotos() {
-        if (mFeedFetchTask != null &&
-                (mFeedFetchTask.getStatus() == AsyncTask.Status.PENDING
-                        || mFeedFetchTask.getStatus() == AsyncTask.Status.RUNNING)) {
+    // Board size to start with. The default until the saved one is loaded, which the
+    // listener is told about.
+    public int getBoardSize() {
+        return mBoardSize;
+    }
+
+
+    public void saveBoardSize(int boardSize) {
+        mBoardSize = boardSize;
+        mBoardSizePicked = true;
+        mPreferences.edit().putInt(PREF_BOARD_SIZE, boardSize).apply();
+    }
+
+
+    // Loads a board of tileCount photos, decoded at tileSize, the size they are shown at.
+    // If look ahead has the next board decoded, it is swapped in. Otherwise, if the feed
+    // cache has enough unused photos that are already downloaded, the board starts from
+    // those right away. Either way the feed is then revalidated in the background.
+    public void loadPhotos(int tileSize, int tileCount) {
+        if (!mFeedCacheLoaded) {
+            mPendingTileSize = tileSize;
+            mPendingTileCount = tileCount;
+            return;
+        }
+
+        mTileSize = tileSize;
+        mTileCount = tileCount;
+        applyBoardBudget(tileCount);
+        if (mFeedFetchTask != null && !mFeedFetchTask.isDone()) {
             mFeedFetchTask.cancel(true);
         }
-        mFeedFetchTask = new FlickrFeedFetchTask();
-        mFeedFetchTask.execute();
+        if (mPrefetchBatch != null) {
+            mPrefetchBatch.cancel();
+            mPrefetchBatch = null;
+        }
+
+        if (mNextBoardReady && mNextBoardTileSize == tileSize && mNextBoardTileCount == tileCount) {
+            ArrayList<FlickrPhoto> nextBoard = mNextBoard;
+            clearNextBoard();
+            showBoard(nextBoard);
+            mFeedFetchTask = fetchFeed(false);
+            return;
+        }
+        clearNextBoard();
+
+        ArrayList<FlickrPhoto> cachedPhotos = mFeedCache.pickUnusedPhotos(tileCount, mDownloadedFilter);
+        if (cachedPhotos.size() == tileCount) {
+            showBoard(cachedPhotos);
+            mFeedFetchTask = fetchFeed(false);
+        }
+        else {
+            mFeedFetchTask = fetchFeed(true);
+        }
+    }
+
+    private static FeedCache newFeedCache(File file) {
+        return new FeedCache(file, FEED_CACHE_MAX_FEEDS, FEED_CACHE_MAX_RECENTLY_USED);
+    }
+
+
+    // The listener may restart the game at the saved size, which only updates the
+    // pending load, so the feed cache is marked loaded after it. savedState is null
+    // if loading it threw; the game then starts with an empty feed cache at the
+    // current size rather than crashing, and the next save replaces the bad file.
+    private void onSavedStateLoaded(SavedState savedState) {
+        if (savedState == null) {
+            savedState = new SavedState(newFeedCache(mFeedCacheFile), mBoardSize);
+        }
+
+        if (!mBoardSizePicked && savedState.boardSize != mBoardSize) {
+            mBoardSize = savedState.boardSize;
+            if (mListener != null) {
+                mListener.onBoardSizeLoaded(mBoardSize);
+            }
+        }
+
+        mFeedCache = savedState.feedCache;
+        mFeedCacheLoaded = true;
+        if (mPendingTileSize != 0) {
+            int tileSize = mPendingTileSize;
+            mPendingTileSize = 0;
+            loadPhotos(tileSize, mPendingTileCount);
+        }
     }
 
+
+    // The board always fills about the same area, so its decoded bytes barely depend on
+    // the tile count once photos are scaled to the exact tile size. Power of two sampling
+    // alone would keep 240px photos at full size for small tiles, and 64 of those do not
+    // fit the cache. More photos to download also get more loader threads.
+    private void applyBoardBudget(int tileCount) {
+        boolean largeBoard = tileCount > SMALL_BOARD_TILE_COUNT;
+        mDownloader.setExactScaling(largeBoard);
+        mDownloader.setLoaderPoolSize(largeBoard ? LARGE_BOARD_POOL_SIZE : PhotoLoadScheduler.DEFAULT_POOL_SIZE);
+    }
+
+
     public void startTimer() {
         mCountDownTimer = new CountDownTimer(GameFragment.COUNTDOWN_TIME * 1000, 1000) {
             @Override
@@ -87,87 +285,267 @@ public class GameHelperFragment extends Fragment {
     }
 
 
-    private String getFlickrApiResponseInJsonFormat() throws IOException, JSONException {
-        URL apiUrl = new URL(API_URL);
-        HttpURLConnection apiConnection = (HttpURLConnection) apiUrl.openConnection();
-        apiConnection.setRequestMethod("POST");
+    // Fetches feed pages until the feed cache has tileCount unused photos, or the pages
+    // run out. Always fetches the first page, so the feed is revalidated. Returns the
+    // photos of every page fetched, newest page first. Pages that fail are skipped,
+    // unless none succeeds.
+    private ArrayList<FlickrPhoto> fetchFlickrPhotos(int tileCount) throws IOException {
+        ArrayList<FlickrPhoto> photos = new ArrayList<FlickrPhoto>();
+        IOException error = null;
+        int fetched = 0;
+
+        for (int page = 0; page <= FEED_PAGE_TAGS.length; page++) {
+            if (page > 0 && mFeedCache.pickUnusedPhotos(tileCount, null).size() == tileCount) {
+                break;
+            }
 
-        apiConnection.connect();
+            try {
+                photos.addAll(fetchFeedPage(getFeedPageUrl(page)));
+                fetched++;
+            } catch (IOException e) {
+                mFeedErrors.increment();
+                e.printStackTrace();
+                error = e;
+            }
+        }
 
-        int responseCode = apiConnection.getResponseCode();
+        if (fetched == 0 && error != null) {
+            throw error;
+        }
+        mFeedCache.save();
+        return photos;
+    }
 
-        BufferedInputStream bis = new BufferedInputStream(apiConnection.getInputStream());
-        apiConnection.getInputStream();
 
-        ByteArrayBuffer baf = new ByteArrayBuffer(50);
-        int totalRead = 0;
-        int read = 0;
-        int bufSize = 1024;
-        byte[] buffer = new byte[bufSize];
+    private static String getFeedPageUrl(int page) {
+        return page == 0 ? API_URL : API_URL + "&tags=" + FEED_PAGE_TAGS[page - 1];
+    }
 
-        while (true) {
-            read = bis.read(buffer);
 
-            if (read == -1)
-                break;
+    // Fetches one feed page and parses up to MAX_FEED_PHOTOS photos while it streams in.
+    // New pages are added to the feed cache. Successful fetches are timed, parsing included.
+    private ArrayList<FlickrPhoto> fetchFeedPage(String url) throws IOException {
+        long startTime = System.nanoTime();
+        FlickrHttpClient.Response apiResponse = FlickrHttpClient.getInstance().get(url, true);
 
-            totalRead += read;
-            baf.append(buffer, 0, read);
+        // Page did not change since the last fetch
+        if (apiResponse.isNotModified()) {
+            apiResponse.close();
+            ArrayList<FlickrPhoto> lastPage = getFeedPage(url);
+            if (lastPage != null) {
+                mFeedFetchTimes.recordSince(startTime);
+                return lastPage;
+            }
+            // Pages are only kept while this fragment lives, fetch it in full again
+            apiResponse = FlickrHttpClient.getInstance().get(url, false);
         }
 
-        byte[] bytes = baf.toByteArray();
-        baf = null;
-        apiConnection.disconnect();
+        try {
+            if (!apiResponse.isSuccessful()) {
+                FlickrHttpClient.getInstance().clearValidators(url);
+                throw new IOException("Flickr feed request failed with " + apiResponse.code);
+            }
 
-        String response = new String(bytes);
-        return response;
+            ArrayList<FlickrPhoto> photos = FlickrFeedParser.parse(
+                    new BufferedInputStream(apiResponse.getBody()), MAX_FEED_PHOTOS);
+            mFeedCache.addFeed(photos);
+            putFeedPage(url, photos);
+            mFeedFetchTimes.recordSince(startTime);
+            return photos;
+        } finally {
+            // Leaves the connection open for reuse
+            apiResponse.close();
+        }
     }
 
 
-    private ArrayList<FlickrPhoto> parse(String jsonResponse) throws JSONException {
-        ArrayList<FlickrPhoto> photos = new ArrayList<FlickrPhoto>();
+    // Pages are stored from the scheduler's threads
+    private ArrayList<FlickrPhoto> getFeedPage(String url) {
+        synchronized (mFeedPages) {
+            return mFeedPages.get(url);
+        }
+    }
+
 
-        JSONObject jsonObject = new JSONObject(jsonResponse);
-        JSONArray items = jsonObject.getJSONArray("items");
-        for (int i = 0; i < Math.min(items.length(), 9); i++) {
-            photos.add(new FlickrPhoto(items.optJSONObject(i)));
+    private void putFeedPage(String url, ArrayList<FlickrPhoto> photos) {
+        synchronized (mFeedPages) {
+            mFeedPages.put(url, photos);
         }
-        return photos;
     }
 
 
-    private class FlickrFeedFetchTask extends AsyncTask<Void, Void, ArrayList<FlickrPhoto>> {
+    // Downloads the board's photos and hands them to the listener. Photos are
+    // scheduled in board order, so a big board fills in from the top row down.
+    private void showBoard(final ArrayList<FlickrPhoto> photos) {
+        mDownloader.setLiveBoard(photos, mTileSize, mTileSize);
+        mFeedCache.markUsed(photos);
+        saveFeedCacheAsync();
 
-        @Override
-        protected ArrayList<FlickrPhoto> doInBackground(Void... voids) {
-            try {
-                String jsonResponse = getFlickrApiResponseInJsonFormat();
-                ArrayList<FlickrPhoto> photos = parse(jsonResponse);
-                mDownloader.downloadPhotos(photos);
-                return photos;
+        // Photos are downloaded in parallel. Board is shown as soon as the batch
+        // settles; photos that failed are lazy loaded again by the grid.
+        mPrefetchBatch = mDownloader.prefetchPhotos(photos, mTileSize, mTileSize, new PhotoPrefetcher.PrefetchListener() {
+            @Override
+            public void onPrefetchComplete(PhotoPrefetcher.PrefetchResult result) {
+                mPrefetchBatch = null;
+                if (mListener == null) {
+                    return;
+                }
+
+                if (result.loaded.isEmpty()) {
+                    mListener.onError();
+                }
+                else {
+                    mListener.onResponse(photos);
+                    // Live board is loaded, network and decoder are free for the next one
+                    scheduleNextBoard();
+                }
             }
+        });
+    }
 
-            catch (JSONException jsonException) {
-                jsonException.printStackTrace();
-            }
-            catch (IOException exception) {
-                exception.printStackTrace();
+
+    // Downloads and decodes the next board at low priority into the look ahead cache,
+    // so that "New game" only has to swap it in. Needs enough unused photos in the
+    // feed cache; if there are not, the next background revalidation calls this again.
+    private void scheduleNextBoard() {
+        if (mNextBoard != null) {
+            return;
+        }
+
+        final ArrayList<FlickrPhoto> nextBoard = mFeedCache.pickUnusedPhotos(mTileCount, null);
+        if (nextBoard.size() < mTileCount) {
+            return;
+        }
+
+        mNextBoard = nextBoard;
+        mNextBoardTileSize = mTileSize;
+        mNextBoardTileCount = mTileCount;
+        mNextBoardReady = false;
+        mNextBoardBatch = mDownloader.lookAheadPhotos(nextBoard, mTileSize, mTileSize, new PhotoPrefetcher.PrefetchListener() {
+            @Override
+            public void onPrefetchComplete(PhotoPrefetcher.PrefetchResult result) {
+                if (mNextBoard != nextBoard) {
+                    return;
+                }
+
+                mNextBoardBatch = null;
+                if (result.isPartial()) {
+                    // Photos that made it are on disk now; try a new board later
+                    mNextBoard = null;
+                    mNextBoardsPartial.increment();
+                }
+                else {
+                    mNextBoardReady = true;
+                    mNextBoardsReady.increment();
+                }
             }
+        });
+    }
 
-            return null;
+
+    private void clearNextBoard() {
+        if (mNextBoardBatch != null) {
+            mNextBoardBatch.cancel();
+            mNextBoardBatch = null;
         }
+        mNextBoard = null;
+        mNextBoardReady = false;
+    }
 
 
-        @Override
-        protected void onPostExecute(ArrayList<FlickrPhoto> photos) {
-            super.onPostExecute(photos);
+    // Board photos from a fresh feed: unused ones first, topped up with used ones
+    private ArrayList<FlickrPhoto> pickBoardPhotos(ArrayList<FlickrPhoto> feedPhotos, int tileCount) {
+        ArrayList<FlickrPhoto> photos = mFeedCache.pickUnusedPhotos(tileCount, null);
+        HashSet<String> urls = new HashSet<String>();
+        for (FlickrPhoto photo : photos) {
+            urls.add(photo.imageResourceLink);
+        }
 
-            if (mListener != null) {
-                mListener.onResponse(photos);
+        for (FlickrPhoto photo : feedPhotos) {
+            if (photos.size() == tileCount) {
+                break;
+            }
+            if (urls.add(photo.imageResourceLink)) {
+                photos.add(photo);
+            }
+        }
+        return photos;
+    }
+
+
+    // Least urgent lane. Tagged with the feed cache rather than this fragment, so
+    // tearing the fragment down does not drop the save.
+    private void saveFeedCacheAsync() {
+        final FeedCache feedCache = mFeedCache;
+        PhotoLoadScheduler.getInstance().schedule(PhotoLoadScheduler.PRIORITY_LOOK_AHEAD, feedCache,
+                new Callable<Void>() {
+                    @Override
+                    public Void call() {
+                        try {
+                            feedCache.save();
+                        } catch (IOException e) {
+                            e.printStackTrace();
+                        }
+                        return null;
+                    }
+                }, null);
+    }
+
+
+    /**
+     * Fetches the feed, as many pages as a board of the current size needs. With showBoard
+     * set the next board is built from it, otherwise it only refreshes the feed cache and
+     * starts look ahead for the next game.
+     * A fetch that shows a board runs in the grid lane, a revalidation in the prefetch lane.
+     */
+    private PhotoLoadScheduler.LoadTask<ArrayList<FlickrPhoto>> fetchFeed(final boolean showBoard) {
+        int priority = showBoard ? PhotoLoadScheduler.PRIORITY_GRID : PhotoLoadScheduler.PRIORITY_PREFETCH;
+        final int tileCount = mTileCount;
+        return PhotoLoadScheduler.getInstance().schedule(priority, this, new Callable<ArrayList<FlickrPhoto>>() {
+            @Override
+            public ArrayList<FlickrPhoto> call() {
+                try {
+                    return fetchFlickrPhotos(tileCount);
+                }
+
+                catch (IOException exception) {
+                    exception.printStackTrace();
+                }
+
+                return null;
             }
-            else {
-                mListener.onError();
+        }, new PhotoLoadScheduler.Callback<ArrayList<FlickrPhoto>>() {
+            @Override
+            public void onComplete(ArrayList<FlickrPhoto> photos) {
+                if (!showBoard) {
+                    // Revalidated in the background. Prepare the next board from the fresh feed.
+                    scheduleNextBoard();
+                    return;
+                }
+
+                if (photos == null || photos.isEmpty()) {
+                    if (mListener != null) {
+                        mListener.onError();
+                    }
+                    return;
+                }
+
+                showBoard(pickBoardPhotos(photos, tileCount));
             }
+        });
+    }
+
+
+    /**
+     * What the game keeps on disk between launches, read in the background at startup.
+     */
+    private static class SavedState {
+        final FeedCache feedCache;
+        final int boardSize;
+
+        SavedState(FeedCache feedCache, int boardSize) {
+            this.feedCache = feedCache;
+            this.boardSize = boardSize;
         }
     }
 }
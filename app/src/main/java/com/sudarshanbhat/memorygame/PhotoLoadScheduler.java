@@ -0,0 +1,369 @@
+package com.sudarshanbhat.memorygame;
+
+import android.os.Handler;
+import android.os.Looper;
+import android.os.Process;
+
+import com.sudarshanbhat.memorygame.core.SingleFlight;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.concurrent.Callable;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.PriorityBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Singleton scheduler for all background loading: feed fetches, lazy photo loads
+ * and prefetching. Work is queued in priority lanes, so a photo the user is looking
+ * at never waits behind prefetching. Within a lane work runs in the order it was
+ * scheduled. Tasks carry a tag and can be cancelled by it, e.g. when the view or
+ * fragment they load for goes away.
+ *
+ * Less urgent lanes also run at lower thread priorities. A task that waits for a
+ * less urgent one, by joining its single flight load, raises that task's thread to
+ * its own priority until the task ends. Otherwise a photo on screen could wait on a
+ * look ahead decode starved of CPU.
+ */
+public class PhotoLoadScheduler {
+
+    // Lanes, most urgent first
+    public static final int PRIORITY_QUIZ = 0;
+    public static final int PRIORITY_GRID = 1;
+    public static final int PRIORITY_PREFETCH = 2;
+    public static final int PRIORITY_LOOK_AHEAD = 3;
+    private static final int LANE_COUNT = 4;
+
+    private static final String[] LANE_NAMES = {"quiz", "grid", "prefetch", "lookAhead"};
+
+    public static final int DEFAULT_POOL_SIZE = 4;
+
+    public interface Callback<V> {
+        // Called on the main thread unless the task was cancelled
+        public void onComplete(V result);
+    }
+
+    private static PhotoLoadScheduler sInstance;
+
+    public static synchronized PhotoLoadScheduler getInstance() {
+        if (sInstance == null) {
+            sInstance = new PhotoLoadScheduler(DEFAULT_POOL_SIZE);
+        }
+
+        return sInstance;
+    }
+
+    private final ThreadPoolExecutor mExecutor;
+    private final Handler mMainHandler = new Handler(Looper.getMainLooper());
+    private final AtomicLong mSequence = new AtomicLong();
+
+    // Tasks scheduled and not finished yet, for cancelling by tag
+    private final HashSet<LoadTask<?>> mActiveTasks = new HashSet<LoadTask<?>>();
+
+    // Task running on each loader thread
+    private final ThreadLocal<LoadTask<?>> mCurrentTask = new ThreadLocal<LoadTask<?>>();
+
+    private final PipelineMetrics.Counter mPriorityBoosts = PipelineMetrics.getInstance().counter("scheduler.boosts");
+
+    // Tasks are the owners of single flight loads they start
+    private final SingleFlight.Owners mFlightOwners = new SingleFlight.Owners() {
+        @Override
+        public Object currentOwner() {
+            return mCurrentTask.get();
+        }
+
+        @Override
+        public void onWait(Object owner) {
+            LoadTask<?> waiter = mCurrentTask.get();
+            if (waiter != null && owner != null) {
+                ((LoadTask<?>) owner).inheritPriority(waiter.getEffectivePriority());
+            }
+        }
+    };
+
+    // Metrics, per lane
+    private final AtomicInteger[] mQueueDepth = new AtomicInteger[LANE_COUNT];
+    private final AtomicLong[] mStartedCount = new AtomicLong[LANE_COUNT];
+    private final AtomicLong[] mTotalWaitMillis = new AtomicLong[LANE_COUNT];
+    private final AtomicLong[] mMaxWaitMillis = new AtomicLong[LANE_COUNT];
+
+    // Singleton. Private constructor.
+    private PhotoLoadScheduler(int poolSize) {
+        for (int i = 0; i < LANE_COUNT; i++) {
+            mQueueDepth[i] = new AtomicInteger();
+            mStartedCount[i] = new AtomicLong();
+            mTotalWaitMillis[i] = new AtomicLong();
+            mMaxWaitMillis[i] = new AtomicLong();
+        }
+
+        // Queue is unbounded, so the pool never grows past its core size
+        mExecutor = new ThreadPoolExecutor(poolSize, poolSize, 30, TimeUnit.SECONDS,
+                new PriorityBlockingQueue<Runnable>(), new LoaderThreadFactory());
+        mExecutor.allowCoreThreadTimeOut(true);
+    }
+
+
+    public void setPoolSize(int poolSize) {
+        if (poolSize < 1) {
+            throw new IllegalArgumentException("Pool size must be at least 1");
+        }
+
+        // Grow the maximum first so core never exceeds it
+        if (poolSize > mExecutor.getMaximumPoolSize()) {
+            mExecutor.setMaximumPoolSize(poolSize);
+            mExecutor.setCorePoolSize(poolSize);
+        }
+        else {
+            mExecutor.setCorePoolSize(poolSize);
+            mExecutor.setMaximumPoolSize(poolSize);
+        }
+    }
+
+
+    /**
+     * Queues work in a lane. The callback, which may be null, gets the result on
+     * the main thread. The returned task can be cancelled, as can all tasks with
+     * the same tag through cancel(tag).
+     */
+    public <V> LoadTask<V> schedule(int priority, Object tag, Callable<V> callable, Callback<V> callback) {
+        if (priority < 0 || priority >= LANE_COUNT) {
+            throw new IllegalArgumentException("Unknown priority " + priority);
+        }
+
+        LoadTask<V> task = new LoadTask<V>(priority, tag, callable, callback);
+        synchronized (mActiveTasks) {
+            mActiveTasks.add(task);
+        }
+        mQueueDepth[priority].incrementAndGet();
+        mExecutor.execute(task);
+        return task;
+    }
+
+
+    // Cancels every task scheduled with this tag. Queued tasks never run. Running
+    // tasks are not interrupted, so a half done download still ends up in the cache,
+    // but their callbacks are not called.
+    public void cancel(Object tag) {
+        ArrayList<LoadTask<?>> tasks = new ArrayList<LoadTask<?>>();
+        synchronized (mActiveTasks) {
+            for (LoadTask<?> task : mActiveTasks) {
+                if (tag.equals(task.mTag)) {
+                    tasks.add(task);
+                }
+            }
+        }
+
+        for (LoadTask<?> task : tasks) {
+            task.cancel(false);
+        }
+    }
+
+
+    // For single flights run by scheduled tasks, so that waiters lend the running task their priority
+    public SingleFlight.Owners getFlightOwners() {
+        return mFlightOwners;
+    }
+
+
+    // Tasks waiting to start in a lane
+    public int getQueueDepth(int priority) {
+        return mQueueDepth[priority].get();
+    }
+
+
+    public long getAverageWaitMillis(int priority) {
+        long started = mStartedCount[priority].get();
+        return started != 0 ? mTotalWaitMillis[priority].get() / started : 0;
+    }
+
+
+    public long getMaxWaitMillis(int priority) {
+        return mMaxWaitMillis[priority].get();
+    }
+
+
+    // Short name of a lane, e.g. "grid"
+    public static String getLaneName(int priority) {
+        return LANE_NAMES[priority];
+    }
+
+
+    @Override
+    public String toString() {
+        StringBuilder builder = new StringBuilder("PhotoLoadScheduler[");
+        for (int i = 0; i < LANE_COUNT; i++) {
+            if (i > 0) {
+                builder.append(',');
+            }
+            builder.append(LANE_NAMES[i]).append("(queued=").append(getQueueDepth(i))
+                    .append(",avgWaitMs=").append(getAverageWaitMillis(i))
+                    .append(",maxWaitMs=").append(getMaxWaitMillis(i)).append(')');
+        }
+        return builder.append(']').toString();
+    }
+
+
+    // Less urgent lanes also get less CPU while they run
+    private static int getThreadPriority(int lane) {
+        return lane <= PRIORITY_GRID
+                ? Process.THREAD_PRIORITY_BACKGROUND + Process.THREAD_PRIORITY_MORE_FAVORABLE
+                : lane == PRIORITY_PREFETCH ? Process.THREAD_PRIORITY_BACKGROUND
+                : Process.THREAD_PRIORITY_LOWEST;
+    }
+
+
+    private void onTaskStarted(LoadTask<?> task) {
+        int lane = task.mPriority;
+        long waitMillis = (System.nanoTime() - task.mScheduledAt) / 1000000;
+        mQueueDepth[lane].decrementAndGet();
+        mStartedCount[lane].incrementAndGet();
+        mTotalWaitMillis[lane].addAndGet(waitMillis);
+
+        long max = mMaxWaitMillis[lane].get();
+        while (waitMillis > max && !mMaxWaitMillis[lane].compareAndSet(max, waitMillis)) {
+            max = mMaxWaitMillis[lane].get();
+        }
+    }
+
+
+    /**
+     * Scheduled work. Orders by lane first and scheduling order second.
+     */
+    public class LoadTask<V> extends FutureTask<V> implements Comparable<LoadTask<?>> {
+        private final int mPriority;
+        private final Object mTag;
+        private final long mSequenceNumber = mSequence.getAndIncrement();
+        private final long mScheduledAt = System.nanoTime();
+        private final Callback<V> mCallback;
+        private boolean mStarted = false;
+
+        // Thread running the task and the lane whose thread priority it runs at.
+        // Guarded by this.
+        private boolean mRunning = false;
+        private int mTid;
+        private int mEffectivePriority;
+
+        LoadTask(int priority, Object tag, Callable<V> callable, Callback<V> callback) {
+            super(callable);
+            mPriority = priority;
+            mTag = tag;
+            mCallback = callback;
+        }
+
+        public int getPriority() {
+            return mPriority;
+        }
+
+        @Override
+        public void run() {
+            boolean counted;
+            synchronized (this) {
+                counted = mStarted;
+                mStarted = true;
+            }
+            // Cancelled tasks stay in the queue until a thread picks them up
+            if (isCancelled()) {
+                return;
+            }
+            if (!counted) {
+                onTaskStarted(this);
+            }
+
+            synchronized (this) {
+                mTid = Process.myTid();
+                mEffectivePriority = mPriority;
+                mRunning = true;
+                Process.setThreadPriority(getThreadPriority(mPriority));
+            }
+            mCurrentTask.set(this);
+            try {
+                super.run();
+            } finally {
+                mCurrentTask.remove();
+                // A boost must not outlive the task; the next task sets its own priority
+                synchronized (this) {
+                    mRunning = false;
+                }
+            }
+        }
+
+
+        // Lane whose thread priority the task runs at, more urgent than its own if boosted
+        synchronized int getEffectivePriority() {
+            return mRunning ? mEffectivePriority : mPriority;
+        }
+
+
+        // Raises the running task's thread to a more urgent lane's priority, because a
+        // task in that lane waits for it. Lasts until the task ends.
+        synchronized void inheritPriority(int lane) {
+            if (!mRunning || lane >= mEffectivePriority
+                    || getThreadPriority(lane) == getThreadPriority(mEffectivePriority)) {
+                return;
+            }
+            mEffectivePriority = lane;
+            Process.setThreadPriority(mTid, getThreadPriority(lane));
+            mPriorityBoosts.increment();
+        }
+
+        @Override
+        protected void done() {
+            synchronized (mActiveTasks) {
+                mActiveTasks.remove(this);
+            }
+
+            synchronized (this) {
+                // Cancelled before it ever ran, so it is still counted as queued
+                if (!mStarted) {
+                    mQueueDepth[mPriority].decrementAndGet();
+                    mStarted = true;
+                }
+            }
+
+            if (isCancelled() || mCallback == null) {
+                return;
+            }
+
+            mMainHandler.post(new Runnable() {
+                @Override
+                public void run() {
+                    if (isCancelled()) {
+                        return;
+                    }
+                    V result = null;
+                    try {
+                        result = get();
+                    } catch (Exception e) {
+                        e.printStackTrace();
+                    }
+                    mCallback.onComplete(result);
+                }
+            });
+        }
+
+        @Override
+        public int compareTo(LoadTask<?> other) {
+            if (mPriority != other.mPriority) {
+                return mPriority < other.mPriority ? -1 : 1;
+            }
+            return mSequenceNumber < other.mSequenceNumber ? -1
+                    : (mSequenceNumber == other.mSequenceNumber ? 0 : 1);
+        }
+    }
+
+
+    private static class LoaderThreadFactory implements ThreadFactory {
+        private final AtomicInteger mCount = new AtomicInteger(1);
+
+        @Override
+        public Thread newThread(Runnable runnable) {
+            Thread thread = new Thread(runnable, "PhotoLoadScheduler #" + mCount.getAndIncrement());
+            thread.setDaemon(true);
+            return thread;
+        }
+    }
+}
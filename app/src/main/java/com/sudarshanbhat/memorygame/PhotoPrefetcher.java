@@ -0,0 +1,171 @@
+package com.sudarshanbhat.memorygame;
+
+import android.graphics.Bitmap;
+import android.os.Handler;
+import android.os.Looper;
+
+import com.sudarshanbhat.memorygame.core.FlickrPhoto;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Future;
+
+/**
+ * Downloads a batch of Flickr photos concurrently on the PhotoLoadScheduler's
+ * bounded worker pool. Every photo gets its own future, so one slow or failed
+ * photo neither blocks nor aborts the rest of the batch. The listener is called
+ * once on the main thread with the photos that loaded and the ones that did not.
+ */
+public class PhotoPrefetcher {
+
+    // A batch is reported after this long even if some photos are still loading.
+    // Photos that miss the deadline are lazy loaded later by applyPhoto().
+    public static final long DEFAULT_BATCH_TIMEOUT_MS = 10 * 1000;
+
+    public interface PrefetchListener {
+        public void onPrefetchComplete(PrefetchResult result);
+    }
+
+    // What loads the photos. FlickrPhotoCache in the app.
+    public interface PhotoLoader {
+        // Blocking, called on a loader thread. Returns null on failure.
+        public Bitmap loadPhoto(FlickrPhoto photo, int targetWidth, int targetHeight, boolean lookAhead);
+    }
+
+    /**
+     * Outcome of a prefetch batch. Photos keep the order they were requested in.
+     */
+    public static class PrefetchResult {
+        public final ArrayList<FlickrPhoto> loaded = new ArrayList<FlickrPhoto>();
+        public final ArrayList<FlickrPhoto> failed = new ArrayList<FlickrPhoto>();
+
+        public boolean isPartial() {
+            return !failed.isEmpty();
+        }
+    }
+
+    /**
+     * Handle to a running batch. Holds one future per requested photo. Photos are
+     * counted as they complete, from the scheduler's callbacks on the main thread,
+     * so a photo is only ever reported once its future is done.
+     */
+    public class PrefetchBatch {
+        private final List<FlickrPhoto> mPhotos;
+        private final ArrayList<Future<Bitmap>> mFutures = new ArrayList<Future<Bitmap>>();
+        // Main thread only
+        private final boolean[] mLoaded;
+        private int mRemaining;
+        private boolean mDelivered;
+        private final PrefetchListener mListener;
+        private final Runnable mTimeoutRunnable = new Runnable() {
+            @Override
+            public void run() {
+                deliver();
+            }
+        };
+
+        private PrefetchBatch(List<FlickrPhoto> photos, PrefetchListener listener) {
+            mPhotos = photos;
+            mListener = listener;
+            mLoaded = new boolean[photos.size()];
+            mRemaining = photos.size();
+        }
+
+        public List<Future<Bitmap>> getFutures() {
+            return mFutures;
+        }
+
+        // Cancels photos that have not started loading yet. The listener is not called.
+        // Must be called from the main thread.
+        public void cancel() {
+            mDelivered = true;
+            mMainHandler.removeCallbacks(mTimeoutRunnable);
+            mScheduler.cancel(this);
+        }
+
+        // Scheduler callback of the photo at index, on the main thread
+        private void onPhotoFinished(int index, Bitmap bitmap) {
+            mLoaded[index] = bitmap != null;
+            if (--mRemaining == 0) {
+                deliver();
+            }
+        }
+
+        // Runs on the main thread, either when the last photo finishes or on timeout.
+        // Photos still loading at the timeout are reported as failed.
+        private void deliver() {
+            if (mDelivered) {
+                return;
+            }
+            mDelivered = true;
+            mMainHandler.removeCallbacks(mTimeoutRunnable);
+
+            PrefetchResult result = new PrefetchResult();
+            for (int i = 0; i < mPhotos.size(); i++) {
+                if (mLoaded[i]) {
+                    result.loaded.add(mPhotos.get(i));
+                }
+                else {
+                    result.failed.add(mPhotos.get(i));
+                }
+            }
+
+            if (mListener != null) {
+                mListener.onPrefetchComplete(result);
+            }
+        }
+    }
+
+    private final PhotoLoader mLoader;
+    private final PhotoLoadScheduler mScheduler;
+    private final int mPriority;
+    private final Handler mMainHandler = new Handler(Looper.getMainLooper());
+    private long mBatchTimeoutMs = DEFAULT_BATCH_TIMEOUT_MS;
+
+    // Photos are loaded in the given scheduler lane. PRIORITY_LOOK_AHEAD loads go
+    // to the look ahead cache.
+    public PhotoPrefetcher(PhotoLoader loader, PhotoLoadScheduler scheduler, int priority) {
+        mLoader = loader;
+        mScheduler = scheduler;
+        mPriority = priority;
+    }
+
+
+    public void setBatchTimeout(long timeoutMs) {
+        mBatchTimeoutMs = timeoutMs;
+    }
+
+
+    // Starts downloading all photos. Must be called from the main thread.
+    // Photos are decoded for the given target size.
+    public PrefetchBatch prefetch(List<FlickrPhoto> photos, final int targetWidth, final int targetHeight,
+                                  PrefetchListener listener) {
+        final PrefetchBatch batch = new PrefetchBatch(new ArrayList<FlickrPhoto>(photos), listener);
+
+        if (batch.mPhotos.isEmpty()) {
+            mMainHandler.post(batch.mTimeoutRunnable);
+            return batch;
+        }
+
+        final boolean lookAhead = mPriority == PhotoLoadScheduler.PRIORITY_LOOK_AHEAD;
+        for (int i = 0; i < batch.mPhotos.size(); i++) {
+            final FlickrPhoto photo = batch.mPhotos.get(i);
+            final int index = i;
+            batch.mFutures.add(mScheduler.schedule(mPriority, batch, new Callable<Bitmap>() {
+                @Override
+                public Bitmap call() throws Exception {
+                    return mLoader.loadPhoto(photo, targetWidth, targetHeight, lookAhead);
+                }
+            }, new PhotoLoadScheduler.Callback<Bitmap>() {
+                @Override
+                public void onComplete(Bitmap result) {
+                    batch.onPhotoFinished(index, result);
+                }
+            }));
+        }
+
+        mMainHandler.postDelayed(batch.mTimeoutRunnable, mBatchTimeoutMs);
+        return batch;
+    }
+}
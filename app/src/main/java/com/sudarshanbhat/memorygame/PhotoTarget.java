@@ -0,0 +1,22 @@
+package com.sudarshanbhat.memorygame;
+
+import android.graphics.Bitmap;
+
+/**
+ * Something FlickrPhotoCache loads a photo into: an ImageView, or one tile of the
+ * board. The cache keeps the target's pending request on the target itself, and
+ * delivers a photo only while the target still holds the request it was loaded for.
+ * It also records the bitmap the target shows, which is not reused for other decodes
+ * until the target is given another photo or released. Main thread only.
+ */
+public interface PhotoTarget {
+    public void onPhotoLoaded(Bitmap bitmap);
+
+    // Pending request, owned by FlickrPhotoCache. Null if there is none.
+    public Object getPhotoRequest();
+    public void setPhotoRequest(Object request);
+
+    // Bitmap delivered to the target, owned by FlickrPhotoCache. Null if there is none.
+    public Bitmap getBoundPhoto();
+    public void setBoundPhoto(Bitmap bitmap);
+}
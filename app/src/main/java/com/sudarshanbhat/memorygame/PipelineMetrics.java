@@ -0,0 +1,342 @@
+package com.sudarshanbhat.memorygame;
+
+import android.os.Process;
+import android.util.JsonWriter;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Singleton registry of counters and timing histograms for the load pipeline:
+ * feed fetches, photo downloads, disk reads and writes, decodes and cache lookups.
+ *
+ * Callers look their counters and histograms up once and keep them; recording is
+ * then an atomic add, or a few adds under the histogram's lock. Every timed span
+ * also goes into a fixed size ring of trace events, which can be written out as a
+ * Chrome trace (chrome://tracing, Perfetto) for offline analysis.
+ */
+public class PipelineMetrics {
+
+    // Most recent spans kept for the trace export
+    public static final int TRACE_CAPACITY = 2048;
+
+    private static PipelineMetrics sInstance;
+
+    public static synchronized PipelineMetrics getInstance() {
+        if (sInstance == null) {
+            sInstance = new PipelineMetrics();
+        }
+
+        return sInstance;
+    }
+
+    private final ConcurrentHashMap<String, Counter> mCounters = new ConcurrentHashMap<String, Counter>();
+    private final ConcurrentHashMap<String, Histogram> mHistograms = new ConcurrentHashMap<String, Histogram>();
+
+    // Ring of finished spans. Index of the next slot to write is mTraceCount % TRACE_CAPACITY.
+    private final String[] mTraceNames = new String[TRACE_CAPACITY];
+    private final long[] mTraceStartNanos = new long[TRACE_CAPACITY];
+    private final long[] mTraceDurationNanos = new long[TRACE_CAPACITY];
+    private final int[] mTraceThreadIds = new int[TRACE_CAPACITY];
+    private long mTraceCount = 0;
+
+    // Trace timestamps are relative to this
+    private final long mStartNanos = System.nanoTime();
+
+    // Singleton. Private constructor.
+    private PipelineMetrics() {
+    }
+
+
+    // Counter of the given name, created on first use
+    public Counter counter(String name) {
+        Counter counter = mCounters.get(name);
+        if (counter == null) {
+            Counter created = new Counter(name);
+            counter = mCounters.putIfAbsent(name, created);
+            if (counter == null) {
+                counter = created;
+            }
+        }
+        return counter;
+    }
+
+
+    // Histogram of the given name, created on first use
+    public Histogram histogram(String name) {
+        Histogram histogram = mHistograms.get(name);
+        if (histogram == null) {
+            Histogram created = new Histogram(name);
+            histogram = mHistograms.putIfAbsent(name, created);
+            if (histogram == null) {
+                histogram = created;
+            }
+        }
+        return histogram;
+    }
+
+
+    // Counters sorted by name
+    public List<Counter> getCounters() {
+        ArrayList<Counter> counters = new ArrayList<Counter>(new TreeMap<String, Counter>(mCounters).values());
+        return Collections.unmodifiableList(counters);
+    }
+
+
+    // Histograms sorted by name
+    public List<Histogram> getHistograms() {
+        ArrayList<Histogram> histograms = new ArrayList<Histogram>(new TreeMap<String, Histogram>(mHistograms).values());
+        return Collections.unmodifiableList(histograms);
+    }
+
+
+    // Zeroes every counter and histogram and drops the trace
+    public void reset() {
+        for (Counter counter : mCounters.values()) {
+            counter.mValue.set(0);
+        }
+        for (Histogram histogram : mHistograms.values()) {
+            histogram.reset();
+        }
+        synchronized (this) {
+            mTraceCount = 0;
+        }
+    }
+
+
+    private synchronized void addTraceEvent(String name, long startNanos, long durationNanos) {
+        int slot = (int) (mTraceCount % TRACE_CAPACITY);
+        mTraceNames[slot] = name;
+        mTraceStartNanos[slot] = startNanos;
+        mTraceDurationNanos[slot] = durationNanos;
+        mTraceThreadIds[slot] = Process.myTid();
+        mTraceCount++;
+    }
+
+
+    /**
+     * Writes the trace ring as Chrome trace JSON: one complete event per span, oldest
+     * first, and the current counter values and extra gauges as counter events at the
+     * end. Blocking, call from a background thread.
+     */
+    public void writeChromeTrace(File file, Map<String, Long> gauges) throws IOException {
+        // Copy under the lock, write without it
+        int count;
+        String[] names;
+        long[] starts;
+        long[] durations;
+        int[] threadIds;
+        synchronized (this) {
+            count = (int) Math.min(mTraceCount, TRACE_CAPACITY);
+            int first = (int) ((mTraceCount - count) % TRACE_CAPACITY);
+            names = new String[count];
+            starts = new long[count];
+            durations = new long[count];
+            threadIds = new int[count];
+            for (int i = 0; i < count; i++) {
+                int slot = (first + i) % TRACE_CAPACITY;
+                names[i] = mTraceNames[slot];
+                starts[i] = mTraceStartNanos[slot];
+                durations[i] = mTraceDurationNanos[slot];
+                threadIds[i] = mTraceThreadIds[slot];
+            }
+        }
+
+        int pid = Process.myPid();
+        long nowMicros = (System.nanoTime() - mStartNanos) / 1000;
+
+        JsonWriter writer = new JsonWriter(new BufferedWriter(new OutputStreamWriter(new FileOutputStream(file), "UTF-8")));
+        try {
+            writer.beginObject();
+            writer.name("displayTimeUnit").value("ms");
+            writer.name("traceEvents").beginArray();
+
+            for (int i = 0; i < count; i++) {
+                writer.beginObject();
+                writer.name("name").value(names[i]);
+                writer.name("cat").value(category(names[i]));
+                writer.name("ph").value("X");
+                writer.name("ts").value((starts[i] - mStartNanos) / 1000);
+                writer.name("dur").value(durations[i] / 1000);
+                writer.name("pid").value(pid);
+                writer.name("tid").value(threadIds[i]);
+                writer.endObject();
+            }
+
+            for (Counter counter : getCounters()) {
+                writeCounterEvent(writer, counter.name, counter.get(), nowMicros, pid);
+            }
+            if (gauges != null) {
+                for (Map.Entry<String, Long> gauge : gauges.entrySet()) {
+                    writeCounterEvent(writer, gauge.getKey(), gauge.getValue(), nowMicros, pid);
+                }
+            }
+
+            writer.endArray();
+            writer.endObject();
+        } finally {
+            writer.close();
+        }
+    }
+
+
+    private static void writeCounterEvent(JsonWriter writer, String name, long value, long timestampMicros, int pid)
+            throws IOException {
+        writer.beginObject();
+        writer.name("name").value(name);
+        writer.name("cat").value(category(name));
+        writer.name("ph").value("C");
+        writer.name("ts").value(timestampMicros);
+        writer.name("pid").value(pid);
+        writer.name("args").beginObject().name("value").value(value).endObject();
+        writer.endObject();
+    }
+
+
+    // "photo.decode" is in category "photo"
+    private static String category(String name) {
+        int dot = name.indexOf('.');
+        return dot > 0 ? name.substring(0, dot) : name;
+    }
+
+
+    @Override
+    public String toString() {
+        StringBuilder sb = new StringBuilder();
+        for (Histogram histogram : getHistograms()) {
+            sb.append(histogram).append('\n');
+        }
+        for (Counter counter : getCounters()) {
+            sb.append(counter).append('\n');
+        }
+        return sb.toString();
+    }
+
+
+    /**
+     * Monotonic count of events, e.g. disk cache hits or failed downloads.
+     */
+    public static class Counter {
+        public final String name;
+        private final AtomicLong mValue = new AtomicLong();
+
+        Counter(String name) {
+            this.name = name;
+        }
+
+        public void increment() {
+            mValue.incrementAndGet();
+        }
+
+        public void add(long delta) {
+            mValue.addAndGet(delta);
+        }
+
+        public long get() {
+            return mValue.get();
+        }
+
+        @Override
+        public String toString() {
+            return name + "=" + mValue.get();
+        }
+    }
+
+
+    /**
+     * Distribution of durations in power of two buckets of microseconds, from under
+     * 1us to over 30s. Percentiles are the upper bound of their bucket, so at most
+     * twice the real value.
+     */
+    public class Histogram {
+        private static final int BUCKET_COUNT = 26;
+
+        public final String name;
+
+        // Bucket i holds durations below 2^i microseconds, the last one everything longer
+        private final long[] mBuckets = new long[BUCKET_COUNT];
+        private long mCount;
+        private long mTotalNanos;
+        private long mMaxNanos;
+
+        Histogram(String name) {
+            this.name = name;
+        }
+
+
+        // Records the time since startNanos, a System.nanoTime(), and adds it to the trace
+        public void recordSince(long startNanos) {
+            long durationNanos = System.nanoTime() - startNanos;
+            record(durationNanos);
+            addTraceEvent(name, startNanos, durationNanos);
+        }
+
+
+        public synchronized void record(long durationNanos) {
+            long micros = durationNanos / 1000;
+            int bucket = 64 - Long.numberOfLeadingZeros(micros);
+            mBuckets[Math.min(bucket, BUCKET_COUNT - 1)]++;
+            mCount++;
+            mTotalNanos += durationNanos;
+            mMaxNanos = Math.max(mMaxNanos, durationNanos);
+        }
+
+
+        public synchronized long getCount() {
+            return mCount;
+        }
+
+        public synchronized long getAverageMicros() {
+            return mCount != 0 ? mTotalNanos / mCount / 1000 : 0;
+        }
+
+        public synchronized long getMaxMicros() {
+            return mMaxNanos / 1000;
+        }
+
+
+        // Upper bound of the bucket holding the given percentile (0 - 100), in microseconds
+        public synchronized long getPercentileMicros(int percentile) {
+            if (mCount == 0) {
+                return 0;
+            }
+
+            long rank = (mCount * percentile + 99) / 100;
+            long seen = 0;
+            for (int i = 0; i < BUCKET_COUNT - 1; i++) {
+                seen += mBuckets[i];
+                if (seen >= rank) {
+                    return 1L << i;
+                }
+            }
+            return mMaxNanos / 1000;
+        }
+
+
+        synchronized void reset() {
+            for (int i = 0; i < BUCKET_COUNT; i++) {
+                mBuckets[i] = 0;
+            }
+            mCount = 0;
+            mTotalNanos = 0;
+            mMaxNanos = 0;
+        }
+
+
+        @Override
+        public synchronized String toString() {
+            return name + "[n=" + mCount + ",avgUs=" + getAverageMicros() + ",p50Us=" + getPercentileMicros(50)
+                    + ",p90Us=" + getPercentileMicros(90) + ",maxUs=" + getMaxMicros() + "]";
+        }
+    }
+}
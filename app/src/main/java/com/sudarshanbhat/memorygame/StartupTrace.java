@@ -0,0 +1,57 @@
+package com.sudarshanbhat.memorygame;
+
+import android.os.Build;
+import android.os.SystemClock;
+import android.os.Trace;
+import android.util.Log;
+
+/**
+ * Marks the cold start path. Sections show up in systrace from API 18, and the
+ * time from GameActivity.onCreate() to the first frame of a filled grid is logged
+ * once per process.
+ */
+public class StartupTrace {
+
+    private static final String TAG = "StartupTrace";
+
+    // 0 until the activity is created
+    private static long sStartTime = 0;
+    private static boolean sFirstGridFrameLogged = false;
+
+    private StartupTrace() {
+    }
+
+
+    public static void beginSection(String name) {
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.JELLY_BEAN_MR2) {
+            Trace.beginSection(name);
+        }
+    }
+
+
+    // Ends the innermost section begun on this thread
+    public static void endSection() {
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.JELLY_BEAN_MR2) {
+            Trace.endSection();
+        }
+    }
+
+
+    // Main thread only
+    public static void onActivityCreated() {
+        if (sStartTime == 0) {
+            sStartTime = SystemClock.elapsedRealtime();
+        }
+    }
+
+
+    // Main thread only. Logs the startup time the first time a filled grid is drawn.
+    public static void onFirstGridFrame() {
+        if (sFirstGridFrameLogged || sStartTime == 0) {
+            return;
+        }
+
+        sFirstGridFrameLogged = true;
+        Log.i(TAG, "First grid frame " + (SystemClock.elapsedRealtime() - sStartTime) + "ms after onCreate");
+    }
+}
@@ -0,0 +1,86 @@
+package com.sudarshanbhat.memorygame.core;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+
+/**
+ * Synthetic inputs shared by the benchmarks.
+ */
+final class BenchmarkData {
+
+    static final int BOARD_TILES = 9;
+
+    private BenchmarkData() {
+    }
+
+
+    static String photoUrl(int index) {
+        return "https://farm" + (index % 9 + 1) + ".staticflickr.com/" + (1000 + index)
+                + "/" + (14000000000L + index) + "_0123456789_m.jpg";
+    }
+
+
+    static ArrayList<FlickrPhoto> photos(int offset, int count) {
+        ArrayList<FlickrPhoto> photos = new ArrayList<FlickrPhoto>(count);
+        for (int i = offset; i < offset + count; i++) {
+            photos.add(new FlickrPhoto("Photo " + i, "https://www.flickr.com/photos/user/" + i + "/", photoUrl(i)));
+        }
+        return photos;
+    }
+
+
+    // Same fields as the public feed, including the HTML description the app skips
+    static String feedJson(int itemCount) {
+        StringBuilder builder = new StringBuilder();
+        builder.append("{\"title\":\"Uploads from everyone\",\"link\":\"https://www.flickr.com/photos/\",")
+                .append("\"description\":\"\",\"modified\":\"2014-08-23T10:00:00Z\",")
+                .append("\"generator\":\"https://www.flickr.com/\",\"items\":[");
+        for (int i = 0; i < itemCount; i++) {
+            if (i > 0) {
+                builder.append(',');
+            }
+            builder.append("{\"title\":\"Photo ").append(i).append(" it\\'s here\",")
+                    .append("\"link\":\"https://www.flickr.com/photos/user/").append(i).append("/\",")
+                    .append("\"media\":{\"m\":\"").append(photoUrl(i)).append("\"},")
+                    .append("\"date_taken\":\"2014-08-23T09:00:00-08:00\",")
+                    .append("\"description\":\" <p><a href=\\\"https://www.flickr.com/people/user/\\\">user</a> ")
+                    .append("posted a photo:</p> <p><a href=\\\"https://www.flickr.com/photos/user/").append(i)
+                    .append("/\\\" title=\\\"Photo\\\"><img src=\\\"").append(photoUrl(i))
+                    .append("\\\" width=\\\"240\\\" height=\\\"160\\\" alt=\\\"Photo\\\" /></a></p> \",")
+                    .append("\"published\":\"2014-08-23T10:00:00Z\",\"author\":\"nobody@flickr.com (user)\",")
+                    .append("\"author_id\":\"12345678@N00\",\"tags\":\"one two three\"}");
+        }
+        return builder.append("]}").toString();
+    }
+
+
+    // JPEG sized payload, not a real image. Disk cache I/O does not look inside.
+    static byte[] photoBytes(int size, int seed) {
+        byte[] data = new byte[size];
+        for (int i = 0; i < size; i++) {
+            data[i] = (byte) (i * 31 + seed);
+        }
+        return data;
+    }
+
+
+    static File newTempDirectory(String prefix) throws IOException {
+        File directory = File.createTempFile(prefix, "");
+        if (!directory.delete() || !directory.mkdir()) {
+            throw new IOException("Cannot create " + directory);
+        }
+        return directory;
+    }
+
+
+    static void deleteRecursively(File file) {
+        File[] children = file.listFiles();
+        if (children != null) {
+            for (File child : children) {
+                deleteRecursively(child);
+            }
+        }
+        file.delete();
+    }
+}
@@ -0,0 +1,100 @@
+package com.sudarshanbhat.memorygame.core;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Cost of generating a board: picking unused photos from the feed cache and marking
+ * them used, then playing the quiz through on the board state.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class BoardBenchmark {
+
+    private static final int FEED_PHOTOS = 20;
+
+    // Fresh feeds cycle through this many photo id ranges, far more than the feed
+    // cache and the recently used list remember
+    private static final int FRESH_FEED_COUNT = 1000;
+
+    // 3x3 and 8x8 boards
+    @Param({"9", "64"})
+    public int tileCount;
+
+    private File mDirectory;
+    private FeedCache mFeedCache;
+    private int mNextFeed;
+
+    // Same quiz orders every run
+    private GameBoard mBoard;
+
+    @Setup
+    public void setUp() throws IOException {
+        mDirectory = BenchmarkData.newTempDirectory("board-benchmark");
+        mFeedCache = new FeedCache(new File(mDirectory, "feed_cache"),
+                FeedCache.DEFAULT_MAX_FEEDS, FeedCache.DEFAULT_MAX_RECENTLY_USED);
+        for (int i = 0; i < FeedCache.DEFAULT_MAX_FEEDS; i++) {
+            mFeedCache.addFeed(BenchmarkData.photos(i * FEED_PHOTOS, FEED_PHOTOS));
+        }
+        mBoard = new GameBoard(tileCount, new Random(42));
+    }
+
+
+    @TearDown
+    public void tearDown() {
+        BenchmarkData.deleteRecursively(mDirectory);
+    }
+
+
+    // A fresh feed comes in every few boards, as revalidation would bring
+    @Benchmark
+    public ArrayList<FlickrPhoto> pickBoard() {
+        ArrayList<FlickrPhoto> board = mFeedCache.pickUnusedPhotos(tileCount, null);
+        mFeedCache.markUsed(board);
+        if (board.size() < tileCount) {
+            if (mNextFeed == FRESH_FEED_COUNT) {
+                mNextFeed = 0;
+            }
+            mFeedCache.addFeed(BenchmarkData.photos(1000 + mNextFeed++ * FEED_PHOTOS, FEED_PHOTOS));
+        }
+        return board;
+    }
+
+
+    // Hides all tiles and guesses every quizzed tile right
+    @Benchmark
+    public int playBoard() {
+        GameBoard board = mBoard;
+        board.hideAll();
+        while (board.hasHiddenTiles()) {
+            board.guess(board.nextQuizTile());
+        }
+        return board.getWrongMoveCount();
+    }
+
+
+    @Benchmark
+    public void saveFeedCache() throws IOException {
+        mFeedCache.save();
+    }
+
+
+    @Benchmark
+    public void loadFeedCache() {
+        mFeedCache.load();
+    }
+}
@@ -0,0 +1,95 @@
+package com.sudarshanbhat.memorygame.core;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Disk work of a cold start that used to run on the main thread before the first
+ * grid frame: replaying the journal of a full photo disk cache and loading the feed
+ * cache, both at the sizes the app uses. Both now run on background threads, so
+ * their sum is what left the main thread.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class ColdStartBenchmark {
+
+    // The app's disk cache, full of Flickr "m" thumbnails
+    private static final long DISK_CACHE_SIZE = 20 * 1024 * 1024;
+    private static final int PHOTO_SIZE = 32 * 1024;
+
+    // GameHelperFragment's feed cache: enough feeds and used photos for two 8x8 boards
+    private static final int FEED_COUNT = 7;
+    private static final int FEED_PHOTOS = 20;
+    private static final int RECENTLY_USED = 128;
+
+    private File mDirectory;
+    private File mFeedCacheFile;
+
+    @Setup
+    public void setUp() throws IOException {
+        mDirectory = BenchmarkData.newTempDirectory("cold-start-benchmark");
+
+        File diskCacheDirectory = new File(mDirectory, "photos");
+        if (!diskCacheDirectory.mkdir()) {
+            throw new IOException("Cannot create " + diskCacheDirectory);
+        }
+        PhotoDiskCache diskCache = new PhotoDiskCache(diskCacheDirectory, DISK_CACHE_SIZE);
+        diskCache.open();
+        byte[] photo = BenchmarkData.photoBytes(PHOTO_SIZE, 7);
+        for (int i = 0; i < DISK_CACHE_SIZE / PHOTO_SIZE; i++) {
+            String key = CacheKeys.diskKey(BenchmarkData.photoUrl(i));
+            OutputStream os = new FileOutputStream(diskCache.getTempFile(key));
+            try {
+                os.write(photo);
+            } finally {
+                os.close();
+            }
+            diskCache.commit(key, photo.length);
+        }
+        diskCache.close();
+
+        mFeedCacheFile = new File(mDirectory, "feed_cache");
+        FeedCache feedCache = new FeedCache(mFeedCacheFile, FEED_COUNT, RECENTLY_USED);
+        for (int i = FEED_COUNT - 1; i >= 0; i--) {
+            feedCache.addFeed(BenchmarkData.photos(i * FEED_PHOTOS, FEED_PHOTOS));
+        }
+        feedCache.markUsed(BenchmarkData.photos(0, RECENTLY_USED));
+        feedCache.save();
+    }
+
+
+    @TearDown
+    public void tearDown() {
+        BenchmarkData.deleteRecursively(mDirectory);
+    }
+
+
+    @Benchmark
+    public long openDiskCache() throws IOException {
+        PhotoDiskCache diskCache = new PhotoDiskCache(new File(mDirectory, "photos"), DISK_CACHE_SIZE);
+        diskCache.open();
+        diskCache.close();
+        return diskCache.size();
+    }
+
+
+    @Benchmark
+    public FeedCache loadFeedCache() {
+        FeedCache feedCache = new FeedCache(mFeedCacheFile, FEED_COUNT, RECENTLY_USED);
+        feedCache.load();
+        return feedCache;
+    }
+}
@@ -0,0 +1,124 @@
+package com.sudarshanbhat.memorygame.core;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * PhotoDiskCache I/O: reading and verifying a cached photo, and writing one through
+ * the temp file and commit, with the journal append that goes with each.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class DiskCacheBenchmark {
+
+    private static final int ENTRY_COUNT = 50;
+
+    // Flickr "m" thumbnails are around 20 to 40 KB
+    @Param({"32768"})
+    public int photoSize;
+
+    private File mDirectory;
+    private PhotoDiskCache mDiskCache;
+    private String[] mKeys;
+    private byte[] mPhoto;
+    private byte[] mReadBuffer;
+    private int mNext;
+
+    @Setup
+    public void setUp() throws IOException {
+        mDirectory = BenchmarkData.newTempDirectory("disk-cache-benchmark");
+        // Room for all entries, so reads never miss; writes replace existing entries
+        mDiskCache = new PhotoDiskCache(mDirectory, (long) photoSize * ENTRY_COUNT * 2);
+        mDiskCache.open();
+
+        mPhoto = BenchmarkData.photoBytes(photoSize, 7);
+        mReadBuffer = new byte[photoSize];
+        mKeys = new String[ENTRY_COUNT];
+        for (int i = 0; i < ENTRY_COUNT; i++) {
+            mKeys[i] = CacheKeys.diskKey(BenchmarkData.photoUrl(i));
+            write(mKeys[i]);
+        }
+    }
+
+
+    @TearDown
+    public void tearDown() throws IOException {
+        mDiskCache.close();
+        BenchmarkData.deleteRecursively(mDirectory);
+    }
+
+
+    // Lookup, full read and checksum, as a disk hit does before decoding
+    @Benchmark
+    public boolean read() throws IOException {
+        String key = nextKey();
+        File file = mDiskCache.get(key);
+        int length = (int) file.length();
+        InputStream is = new FileInputStream(file);
+        try {
+            int offset = 0;
+            while (offset < length) {
+                int count = is.read(mReadBuffer, offset, length - offset);
+                if (count == -1) {
+                    throw new IOException("Unexpected end of file: " + file);
+                }
+                offset += count;
+            }
+        } finally {
+            is.close();
+        }
+        return mDiskCache.verify(key, mReadBuffer, length);
+    }
+
+
+    @Benchmark
+    public boolean write() throws IOException {
+        return write(nextKey());
+    }
+
+
+    private boolean write(String key) throws IOException {
+        OutputStream os = new FileOutputStream(mDiskCache.getTempFile(key));
+        try {
+            os.write(mPhoto);
+        } finally {
+            os.close();
+        }
+        return mDiskCache.commit(key, mPhoto.length);
+    }
+
+
+    // Startup cost of replaying the journal
+    @Benchmark
+    public long open() throws IOException {
+        PhotoDiskCache diskCache = new PhotoDiskCache(mDirectory, (long) photoSize * ENTRY_COUNT * 2);
+        diskCache.open();
+        diskCache.close();
+        return diskCache.size();
+    }
+
+
+    // Cycles through the keys. The counter is reset rather than left to overflow.
+    private String nextKey() {
+        if (mNext == ENTRY_COUNT) {
+            mNext = 0;
+        }
+        return mKeys[mNext++];
+    }
+}
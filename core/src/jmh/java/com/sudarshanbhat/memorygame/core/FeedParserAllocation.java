@@ -0,0 +1,70 @@
+package com.sudarshanbhat.memorygame.core;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+
+/**
+ * Bytes allocated per parse by FlickrFeedParser and by the tree parse it replaced,
+ * the same four cases as FeedParserBenchmark. JMH 1.1's gc profiler reports only
+ * collection counts, so this counts the thread's allocations directly, which needs
+ * a HotSpot VM. Run with ./gradlew :core:feedParserAllocation
+ */
+public class FeedParserAllocation {
+
+    private static final int WARMUP_PARSES = 2000;
+    private static final int PARSES = 1000;
+    private static final int[] ITEM_COUNTS = {20, 1000};
+
+    private interface Parse {
+        Object run(byte[] feed, int maxPhotos) throws IOException;
+    }
+
+    private static final Parse STREAMING = new Parse() {
+        @Override
+        public Object run(byte[] feed, int maxPhotos) throws IOException {
+            return FlickrFeedParser.parse(new ByteArrayInputStream(feed), maxPhotos);
+        }
+    };
+
+    private static final Parse TREE = new Parse() {
+        @Override
+        public Object run(byte[] feed, int maxPhotos) throws IOException {
+            return FeedParserBenchmark.parseTree(new ByteArrayInputStream(feed), maxPhotos);
+        }
+    };
+
+    private FeedParserAllocation() {
+    }
+
+
+    public static void main(String[] args) throws IOException {
+        com.sun.management.ThreadMXBean threads =
+                (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+
+        for (int itemCount : ITEM_COUNTS) {
+            byte[] feed = BenchmarkData.feedJson(itemCount).getBytes("UTF-8");
+            System.out.println("itemCount=" + itemCount + " (" + feed.length + " bytes)");
+            print(threads, "  parseAll     ", STREAMING, feed, itemCount);
+            print(threads, "  treeAll      ", TREE, feed, itemCount);
+            print(threads, "  parseOneBoard", STREAMING, feed, BenchmarkData.BOARD_TILES);
+            print(threads, "  treeOneBoard ", TREE, feed, BenchmarkData.BOARD_TILES);
+        }
+    }
+
+
+    private static void print(com.sun.management.ThreadMXBean threads, String name, Parse parse, byte[] feed,
+                              int maxPhotos) throws IOException {
+        for (int i = 0; i < WARMUP_PARSES; i++) {
+            parse.run(feed, maxPhotos);
+        }
+
+        long threadId = Thread.currentThread().getId();
+        long startBytes = threads.getThreadAllocatedBytes(threadId);
+        for (int i = 0; i < PARSES; i++) {
+            parse.run(feed, maxPhotos);
+        }
+        long bytes = (threads.getThreadAllocatedBytes(threadId) - startBytes) / PARSES;
+        System.out.println(name + " " + bytes + " bytes/op");
+    }
+}
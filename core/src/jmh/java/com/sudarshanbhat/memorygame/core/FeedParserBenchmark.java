@@ -0,0 +1,103 @@
+package com.sudarshanbhat.memorygame.core;
+
+import com.google.gson.JsonArray;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * FlickrFeedParser on a feed shaped like the Flickr public feed, against the parse it
+ * replaced: the whole body buffered into a String in the platform charset, then a
+ * JSON tree built and the first items read from it. FeedParserAllocation measures
+ * the bytes each of them allocates.
+ *
+ * The old code built its tree with android's org.json, which does not run off device;
+ * Gson's tree model stands in for it.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class FeedParserBenchmark {
+
+    // Flickr returns 20 items per feed; larger feeds show what buffering costs
+    @Param({"20", "1000"})
+    public int itemCount;
+
+    private byte[] mFeed;
+
+    @Setup
+    public void setUp() throws IOException {
+        mFeed = BenchmarkData.feedJson(itemCount).getBytes("UTF-8");
+    }
+
+
+    // Whole feed
+    @Benchmark
+    public ArrayList<FlickrPhoto> parseAll() throws IOException {
+        return FlickrFeedParser.parse(new ByteArrayInputStream(mFeed), itemCount);
+    }
+
+
+    // One board, stopping early as the app does
+    @Benchmark
+    public ArrayList<FlickrPhoto> parseOneBoard() throws IOException {
+        return FlickrFeedParser.parse(new ByteArrayInputStream(mFeed), BenchmarkData.BOARD_TILES);
+    }
+
+
+    @Benchmark
+    public ArrayList<FlickrPhoto> treeAll() throws IOException {
+        return parseTree(new ByteArrayInputStream(mFeed), itemCount);
+    }
+
+
+    // What the old code did for a board: the whole feed is read and built either way
+    @Benchmark
+    public ArrayList<FlickrPhoto> treeOneBoard() throws IOException {
+        return parseTree(new ByteArrayInputStream(mFeed), BenchmarkData.BOARD_TILES);
+    }
+
+
+    // The old getFlickrApiResponseInJsonFormat() and parse(): 1 KB reads into a buffer
+    // that starts at 50 bytes, a String in the default charset, then the tree
+    static ArrayList<FlickrPhoto> parseTree(InputStream inputStream, int maxPhotos) throws IOException {
+        ByteArrayOutputStream buffer = new ByteArrayOutputStream(50);
+        byte[] bytes = new byte[1024];
+        int read;
+        while ((read = inputStream.read(bytes)) != -1) {
+            buffer.write(bytes, 0, read);
+        }
+        String response = new String(buffer.toByteArray());
+
+        JsonArray items = new JsonParser().parse(response).getAsJsonObject().getAsJsonArray("items");
+        ArrayList<FlickrPhoto> photos = new ArrayList<FlickrPhoto>();
+        for (int i = 0; i < Math.min(items.size(), maxPhotos); i++) {
+            JsonObject item = items.get(i).getAsJsonObject();
+            photos.add(new FlickrPhoto(getString(item, "title"), getString(item, "link"),
+                    getString(item.getAsJsonObject("media"), "m")));
+        }
+        return photos;
+    }
+
+
+    private static String getString(JsonObject object, String name) {
+        JsonElement element = object.get(name);
+        return element != null ? element.getAsString() : "";
+    }
+}
@@ -0,0 +1,107 @@
+package com.sudarshanbhat.memorygame.core;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Latency of the memory tier hit path: building the cache key and looking it up,
+ * as applyPhoto() does for every bound tile. Also a miss, and a put that evicts.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class MemoryCacheBenchmark {
+
+    private static final int TILE_SIZE = 240;
+    // Power of two, so the ever growing counter maps to an index with a mask even
+    // once it wraps around to negative values
+    private static final int ENTRY_COUNT = 64;
+    private static final int ENTRY_SIZE = TILE_SIZE * TILE_SIZE * 2;
+
+    private SizedLruCache<String, byte[]> mCache;
+    private String[] mUrls;
+    private String[] mKeys;
+    private byte[] mValue;
+    private int mNext;
+
+    @Setup
+    public void setUp() {
+        mCache = new SizedLruCache<String, byte[]>(ENTRY_COUNT * ENTRY_SIZE) {
+            @Override
+            protected int sizeOf(String key, byte[] value) {
+                return value.length;
+            }
+        };
+
+        mValue = new byte[ENTRY_SIZE];
+        mUrls = new String[ENTRY_COUNT * 2];
+        mKeys = new String[mUrls.length];
+        for (int i = 0; i < mUrls.length; i++) {
+            mUrls[i] = BenchmarkData.photoUrl(i);
+            mKeys[i] = CacheKeys.memoryKey(mUrls[i], TILE_SIZE, TILE_SIZE);
+        }
+        // First half is cached, second half is not
+        for (int i = 0; i < ENTRY_COUNT; i++) {
+            mCache.put(mKeys[i], mValue);
+        }
+    }
+
+
+    @Benchmark
+    public byte[] hit() {
+        String url = mUrls[mNext++ & (ENTRY_COUNT - 1)];
+        return mCache.get(CacheKeys.memoryKey(url, TILE_SIZE, TILE_SIZE));
+    }
+
+
+    // Grid binding happens on the main thread while loader threads put
+    @Benchmark
+    @Threads(4)
+    public byte[] hitContended() {
+        String url = mUrls[mNext++ & (ENTRY_COUNT - 1)];
+        return mCache.get(CacheKeys.memoryKey(url, TILE_SIZE, TILE_SIZE));
+    }
+
+
+    // Lookup alone, without building the key, to see what the cache itself costs
+    @Benchmark
+    public byte[] lookup() {
+        return mCache.get(mKeys[mNext++ & (ENTRY_COUNT - 1)]);
+    }
+
+
+    @Benchmark
+    @Threads(4)
+    public byte[] lookupContended() {
+        return mCache.get(mKeys[mNext++ & (ENTRY_COUNT - 1)]);
+    }
+
+
+    @Benchmark
+    public byte[] miss() {
+        String url = mUrls[ENTRY_COUNT + (mNext++ & (ENTRY_COUNT - 1))];
+        return mCache.get(CacheKeys.memoryKey(url, TILE_SIZE, TILE_SIZE));
+    }
+
+
+    // Cache is full, so every put evicts the least recently used entry
+    @Benchmark
+    public byte[] putEvicting() {
+        String url = mUrls[mNext++ & (mUrls.length - 1)];
+        return mCache.put(CacheKeys.memoryKey(url, TILE_SIZE, TILE_SIZE), mValue);
+    }
+
+
+    @Benchmark
+    public String diskKey() {
+        return CacheKeys.diskKey(mUrls[mNext++ & (mUrls.length - 1)]);
+    }
+}
@@ -0,0 +1,114 @@
+package com.sudarshanbhat.memorygame.core;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Time until a cold photo's bytes are ready to decode, from a MockHttpServer on a
+ * local socket standing in for Flickr: streaming, where the download is handed out
+ * straight away and written to disk in the background, against disk first, where
+ * it is written to the temp file, read back and committed before it is handed out.
+ *
+ * Every call loads a url not loaded before, through a memory tier too small to keep
+ * anything. Each iteration starts with an empty disk cache, once the previous
+ * iteration's background writes are done; within an iteration those writes share
+ * the CPU with the loads being measured, as they do in the app.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class PhotoFetchBenchmark {
+
+    // More than a one second iteration loads, so no url is loaded twice
+    private static final int URL_COUNT = 32 * 1024;
+
+    // Same as the app's disk cache
+    private static final long DISK_CACHE_SIZE = 20 * 1024 * 1024;
+
+    @Param({"true", "false"})
+    public boolean streaming;
+
+    // Flickr "m" thumbnails are around 20 to 40 KB
+    @Param({"32768"})
+    public int photoSize;
+
+    private MockHttpServer mServer;
+    private FlickrHttpClient mHttpClient;
+    private String[] mUrls;
+    private int mNext;
+
+    private File mDirectory;
+    private PhotoDiskCache mDiskCache;
+    private ExecutorService mDiskWriteExecutor;
+    private EncodedPhotoStore mStore;
+
+    @Setup
+    public void setUp() throws IOException {
+        mServer = new MockHttpServer();
+        mHttpClient = new FlickrHttpClient();
+        byte[] photo = BenchmarkData.photoBytes(photoSize, 7);
+        mUrls = new String[URL_COUNT];
+        for (int i = 0; i < URL_COUNT; i++) {
+            String path = "/photos/" + i + ".jpg";
+            mServer.setBody(path, photo);
+            mUrls[i] = mServer.url(path);
+        }
+    }
+
+
+    @TearDown
+    public void tearDown() {
+        mServer.shutdown();
+    }
+
+
+    @Setup(Level.Iteration)
+    public void openStore() throws IOException {
+        mDirectory = BenchmarkData.newTempDirectory("photo-fetch-benchmark");
+        mDiskCache = new PhotoDiskCache(mDirectory, DISK_CACHE_SIZE);
+        mDiskCache.open();
+        mDiskWriteExecutor = Executors.newSingleThreadExecutor();
+        mStore = new EncodedPhotoStore(mHttpClient, mDiskWriteExecutor, 1, null);
+        mStore.setDiskCache(mDiskCache);
+        mStore.setStreaming(streaming);
+        mNext = 0;
+    }
+
+
+    @TearDown(Level.Iteration)
+    public void closeStore() throws Exception {
+        mDiskWriteExecutor.shutdown();
+        if (!mDiskWriteExecutor.awaitTermination(1, TimeUnit.MINUTES)) {
+            throw new IllegalStateException("Disk writes did not finish");
+        }
+        mDiskCache.close();
+        BenchmarkData.deleteRecursively(mDirectory);
+    }
+
+
+    @Benchmark
+    public int coldLoad() {
+        if (mNext == URL_COUNT) {
+            throw new IllegalStateException("Ran out of cold urls, use shorter iterations");
+        }
+        byte[] data = mStore.get(mUrls[mNext++]);
+        if (data == null) {
+            throw new IllegalStateException("Load failed");
+        }
+        return data.length;
+    }
+}
@@ -0,0 +1,115 @@
+package com.sudarshanbhat.memorygame.core;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import java.io.BufferedInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Reading a cached photo for decoding: the old decodeFile() input, two streams on the
+ * file, one for the bounds pass and one for the pixel pass, against the single read
+ * into memory that both passes decode from now.
+ *
+ * BitmapFactory is not available off device, so the old streams are read the way
+ * decodeStream() reads them: wrapped in its 16 KB BufferedInputStream, one buffer
+ * for the bounds pass and the whole file for the pixel pass.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class PhotoReadBenchmark {
+
+    private static final int FILE_COUNT = 50;
+
+    // decodeStream()'s buffer, and the decoder's inTempStorage, on API 19
+    private static final int DECODE_BUFFER_SIZE = 16 * 1024;
+
+    // Flickr "m" thumbnails are around 20 to 40 KB
+    @Param({"16384", "32768", "65536"})
+    public int photoSize;
+
+    private File mDirectory;
+    private File[] mFiles;
+    private byte[] mTempStorage;
+    private int mNext;
+
+    @Setup
+    public void setUp() throws IOException {
+        mDirectory = BenchmarkData.newTempDirectory("photo-read-benchmark");
+        mTempStorage = new byte[DECODE_BUFFER_SIZE];
+        mFiles = new File[FILE_COUNT];
+        for (int i = 0; i < FILE_COUNT; i++) {
+            mFiles[i] = new File(mDirectory, String.valueOf(i));
+            OutputStream os = new FileOutputStream(mFiles[i]);
+            try {
+                os.write(BenchmarkData.photoBytes(photoSize, i));
+            } finally {
+                os.close();
+            }
+        }
+    }
+
+
+    @TearDown
+    public void tearDown() {
+        BenchmarkData.deleteRecursively(mDirectory);
+    }
+
+
+    // Two opens and a read per buffer. The old code never closed the streams and
+    // left them to the finalizer; they are closed here so the run does not run out
+    // of descriptors, which makes this the cheaper side of the old behaviour.
+    @Benchmark
+    public int twoStreams() throws IOException {
+        File file = nextFile();
+        int read;
+
+        InputStream bounds = new BufferedInputStream(new FileInputStream(file), DECODE_BUFFER_SIZE);
+        try {
+            read = bounds.read(mTempStorage, 0, DECODE_BUFFER_SIZE);
+        } finally {
+            bounds.close();
+        }
+
+        InputStream pixels = new BufferedInputStream(new FileInputStream(file), DECODE_BUFFER_SIZE);
+        try {
+            int count;
+            while ((count = pixels.read(mTempStorage, 0, DECODE_BUFFER_SIZE)) != -1) {
+                read += count;
+            }
+        } finally {
+            pixels.close();
+        }
+        return read;
+    }
+
+
+    // One open and one read into memory, as a disk hit in EncodedPhotoStore does
+    @Benchmark
+    public int readOnce() throws IOException {
+        return EncodedPhotoStore.readFile(nextFile()).length;
+    }
+
+
+    // Cycles through the files. The counter is reset rather than left to overflow.
+    private File nextFile() {
+        if (mNext == FILE_COUNT) {
+            mNext = 0;
+        }
+        return mFiles[mNext++];
+    }
+}
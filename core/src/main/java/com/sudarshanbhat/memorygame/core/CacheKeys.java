@@ -0,0 +1,39 @@
+package com.sudarshanbhat.memorygame.core;
+
+import java.io.UnsupportedEncodingException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+/**
+ * Keys photos are cached under, in memory and on disk.
+ */
+public class CacheKeys {
+
+    private CacheKeys() {
+    }
+
+
+    // Memory cache key. The same photo can be cached at more than one size.
+    public static String memoryKey(String url, int width, int height) {
+        return url + "#" + width + "x" + height;
+    }
+
+
+    // Collision safe disk cache key for a url, also usable as a file name
+    public static String diskKey(String url) {
+        try {
+            MessageDigest digest = MessageDigest.getInstance("SHA-1");
+            byte[] hash = digest.digest(url.getBytes("UTF-8"));
+            StringBuilder builder = new StringBuilder(hash.length * 2);
+            for (byte b : hash) {
+                builder.append(Character.forDigit((b >> 4) & 0xf, 16));
+                builder.append(Character.forDigit(b & 0xf, 16));
+            }
+            return builder.toString();
+        } catch (NoSuchAlgorithmException e) {
+            throw new AssertionError(e);
+        } catch (UnsupportedEncodingException e) {
+            throw new AssertionError(e);
+        }
+    }
+}
@@ -0,0 +1,409 @@
+package com.sudarshanbhat.memorygame.core;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+
+/**
+ * Compressed bytes of downloaded photos, keyed by url: a memory tier, then the disk
+ * cache, then the network. What the decoders read from.
+ *
+ * Safe for any number of loader threads. A url is fetched once however many threads
+ * ask for it at the same time; the others wait for the same result. Reads and writes
+ * of a disk file are serialized by a striped lock on its key. A cached file that is
+ * missing, short or fails its checksum when read, e.g. because another photo's commit
+ * trimmed it, is dropped and fetched again instead of failing the load.
+ */
+public class EncodedPhotoStore {
+
+    private static final int DISK_LOCK_STRIPES = 32;
+
+    /**
+     * Outcomes and timings of the stages a photo goes through. Called on loader and
+     * disk write threads. Does nothing by default.
+     */
+    public static class Listener {
+        public void onDiskHit() {
+        }
+
+        public void onDiskMiss() {
+        }
+
+        public void onDiskError() {
+        }
+
+        public void onNetworkError() {
+        }
+
+        public void onNetworkDone(long startNanos) {
+        }
+
+        public void onDiskReadDone(long startNanos) {
+        }
+
+        public void onDiskWriteDone(long startNanos) {
+        }
+    }
+
+    private final FlickrHttpClient mHttpClient;
+    private final Executor mDiskWriteExecutor;
+    private final Listener mListener;
+
+    // Replaced when the memory budget changes, hence volatile
+    private volatile SizedLruCache<String, byte[]> mMemoryCache;
+
+    // Null if the cache directory could not be opened. Photos are not loaded then.
+    // Set once by setDiskCache(); use awaitDiskCache() to wait for it.
+    private volatile PhotoDiskCache mDiskCache;
+    private final CountDownLatch mDiskCacheReady = new CountDownLatch(1);
+
+    // Fetches currently running, keyed by url
+    private final SingleFlight<byte[]> mFetches;
+
+    // Serialize reads and writes of the same disk cache file across loader and writer threads
+    private final StripedLocks mDiskLocks = new StripedLocks(DISK_LOCK_STRIPES);
+
+    // Photos downloaded in streaming mode whose disk write has not finished yet, by disk key
+    private final ConcurrentHashMap<String, byte[]> mPendingDiskWrites = new ConcurrentHashMap<String, byte[]>();
+
+    // When set, downloaded bytes are handed out straight away and written to disk
+    // in the background. Otherwise they go to disk first.
+    private volatile boolean mStreaming = true;
+
+    public EncodedPhotoStore(FlickrHttpClient httpClient, Executor diskWriteExecutor, int memoryCacheSize,
+                             Listener listener) {
+        this(httpClient, diskWriteExecutor, memoryCacheSize, listener, null);
+    }
+
+
+    // Disk writes run on diskWriteExecutor, which should be a single thread. Loads
+    // that join another thread's fetch report it to fetchOwners, which may be null.
+    public EncodedPhotoStore(FlickrHttpClient httpClient, Executor diskWriteExecutor, int memoryCacheSize,
+                             Listener listener, SingleFlight.Owners fetchOwners) {
+        mFetches = new SingleFlight<byte[]>(fetchOwners);
+        mHttpClient = httpClient;
+        mDiskWriteExecutor = diskWriteExecutor;
+        mListener = listener != null ? listener : new Listener();
+        mMemoryCache = newMemoryCache(memoryCacheSize);
+    }
+
+
+    private static SizedLruCache<String, byte[]> newMemoryCache(int maxSize) {
+        return new SizedLruCache<String, byte[]>(maxSize) {
+            @Override
+            protected int sizeOf(String key, byte[] value) {
+                return value.length;
+            }
+        };
+    }
+
+
+    // Call once the disk cache is opened, or with null if it could not be
+    public void setDiskCache(PhotoDiskCache diskCache) {
+        mDiskCache = diskCache;
+        mDiskCacheReady.countDown();
+    }
+
+
+    // Blocks until setDiskCache() is called. Background threads only.
+    public PhotoDiskCache awaitDiskCache() {
+        try {
+            mDiskCacheReady.await();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return null;
+        }
+        return mDiskCache;
+    }
+
+
+    // Null until the disk cache is opened
+    public PhotoDiskCache peekDiskCache() {
+        return mDiskCache;
+    }
+
+
+    // Rebuilds the memory tier with a new budget, keeping as many recent photos as fit
+    public synchronized void setMemoryCacheSize(int maxSize) {
+        SizedLruCache<String, byte[]> memoryCache = newMemoryCache(maxSize);
+        // Snapshots are least recently used first, so putting them in order keeps recency
+        for (Map.Entry<String, byte[]> entry : mMemoryCache.snapshot().entrySet()) {
+            memoryCache.put(entry.getKey(), entry.getValue());
+        }
+        mMemoryCache = memoryCache;
+    }
+
+
+    public SizedLruCache<String, byte[]> getMemoryCache() {
+        return mMemoryCache;
+    }
+
+
+    public void setStreaming(boolean streaming) {
+        mStreaming = streaming;
+    }
+
+
+    // True if the photo is downloaded already, so loading it needs no network.
+    // Does not wait for the disk cache; before it is open only pending writes count.
+    public boolean isDownloaded(String url) {
+        PhotoDiskCache diskCache = mDiskCache;
+        String key = CacheKeys.diskKey(url);
+        return mPendingDiskWrites.containsKey(key) || (diskCache != null && diskCache.contains(key));
+    }
+
+
+    // Returns the compressed photo, or null if it could not be loaded. Blocking,
+    // call only from a background thread. The array is shared; do not modify it.
+    public byte[] get(final String url) {
+        byte[] data = mMemoryCache.get(url);
+        if (data != null) {
+            return data;
+        }
+
+        // Early loads wait here until the disk cache is open
+        final PhotoDiskCache diskCache = awaitDiskCache();
+        if (diskCache == null) {
+            return null;
+        }
+
+        // Photo is fetched only once per url, even if it is decoded at several sizes
+        return mFetches.run(url, new Callable<byte[]>() {
+            @Override
+            public byte[] call() throws Exception {
+                byte[] data = fetch(url, diskCache);
+                if (data != null) {
+                    mMemoryCache.put(url, data);
+                }
+                return data;
+            }
+        });
+    }
+
+
+    private byte[] fetch(String url, PhotoDiskCache diskCache) {
+        // Digest of the url is used as the name of the file on disk
+        String key = CacheKeys.diskKey(url);
+
+        //still being written to disk
+        byte[] data = mPendingDiskWrites.get(key);
+        if (data == null) {
+            //from disk
+            data = readFromDisk(key, diskCache);
+        }
+        if (data != null) {
+            mListener.onDiskHit();
+            return data;
+        }
+
+        //from web
+        mListener.onDiskMiss();
+        if (mStreaming) {
+            data = downloadBytes(url);
+            if (data != null) {
+                writeToDiskAsync(key, data, diskCache);
+            }
+            return data;
+        }
+        return downloadFile(url, key, diskCache);
+    }
+
+
+    // Reads and verifies a cached file under its key's lock. A file that cannot be read
+    // in full or fails its checksum is dropped, and null returned so it is downloaded again.
+    private byte[] readFromDisk(String key, PhotoDiskCache diskCache) {
+        synchronized (mDiskLocks.get(key)) {
+            try {
+                File file = diskCache.get(key);
+                if (file == null) {
+                    return null;
+                }
+
+                long startTime = System.nanoTime();
+                byte[] data = readFile(file);
+                if (data != null && diskCache.verify(key, data, data.length)) {
+                    mListener.onDiskReadDone(startTime);
+                    return data;
+                }
+
+                // Trimmed by another photo's commit since get(), or corrupt
+                diskCache.remove(key);
+                mListener.onDiskError();
+            } catch (IOException e) {
+                mListener.onDiskError();
+                e.printStackTrace();
+            }
+            return null;
+        }
+    }
+
+
+    // Downloads a photo into memory. Returns null if it failed or came back short.
+    private byte[] downloadBytes(String url) {
+        long startTime = System.nanoTime();
+        try {
+            FlickrHttpClient.Response response = mHttpClient.get(url, false);
+            try {
+                if (!response.isSuccessful()) {
+                    mListener.onNetworkError();
+                    return null;
+                }
+
+                int contentLength = response.getContentLength();
+                ByteArrayOutputStream os = new ByteArrayOutputStream(contentLength > 0 ? contentLength : 32 * 1024);
+                copyStream(response.getBody(), os);
+
+                if (os.size() == 0 || (contentLength >= 0 && os.size() != contentLength)) {
+                    mListener.onNetworkError();
+                    return null;
+                }
+                mListener.onNetworkDone(startTime);
+                return os.toByteArray();
+            } finally {
+                response.close();
+            }
+        } catch (IOException ex) {
+            mListener.onNetworkError();
+            ex.printStackTrace();
+            return null;
+        }
+    }
+
+
+    // Writes downloaded bytes to the disk cache off the decode path
+    private void writeToDiskAsync(final String key, final byte[] data, final PhotoDiskCache diskCache) {
+        mPendingDiskWrites.put(key, data);
+        mDiskWriteExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                long startTime = System.nanoTime();
+                synchronized (mDiskLocks.get(key)) {
+                    try {
+                        OutputStream os = new FileOutputStream(diskCache.getTempFile(key));
+                        try {
+                            os.write(data);
+                        } finally {
+                            os.close();
+                        }
+                        diskCache.commit(key, data.length);
+                        mListener.onDiskWriteDone(startTime);
+                    } catch (IOException e) {
+                        mListener.onDiskError();
+                        e.printStackTrace();
+                        diskCache.abort(key);
+                    } finally {
+                        mPendingDiskWrites.remove(key);
+                    }
+                }
+            }
+        });
+    }
+
+
+    // Downloads into a temp file, reads it back and commits it to the disk cache.
+    // Holds the key's disk lock throughout, since the temp file is shared with
+    // writeToDiskAsync(). Only this url's single flight fetch takes it for long.
+    private byte[] downloadFile(String url, String key, PhotoDiskCache diskCache) {
+        synchronized (mDiskLocks.get(key)) {
+            return downloadFileLocked(url, key, diskCache);
+        }
+    }
+
+
+    // Network time here includes writing to the temp file, since the two are interleaved.
+    // The temp file is read before the commit, which may trim it right away in a full cache.
+    private byte[] downloadFileLocked(String url, String key, PhotoDiskCache diskCache) {
+        long startTime = System.nanoTime();
+        try {
+            FlickrHttpClient.Response response = mHttpClient.get(url, false);
+            try {
+                if (!response.isSuccessful()) {
+                    mListener.onNetworkError();
+                    return null;
+                }
+
+                File tempFile = diskCache.getTempFile(key);
+                OutputStream os = new FileOutputStream(tempFile);
+                try {
+                    copyStream(response.getBody(), os);
+                } finally {
+                    os.close();
+                }
+
+                // Content length is -1 if the server did not send one
+                int contentLength = response.getContentLength();
+                byte[] data = readFile(tempFile);
+                if (data == null || (contentLength >= 0 && data.length != contentLength)
+                        || !diskCache.commit(key, data.length)) {
+                    mListener.onNetworkError();
+                    diskCache.abort(key);
+                    return null;
+                }
+                mListener.onNetworkDone(startTime);
+                return data;
+            } finally {
+                response.close();
+            }
+        } catch (IOException ex) {
+            mListener.onNetworkError();
+            ex.printStackTrace();
+            diskCache.abort(key);
+            return null;
+        }
+    }
+
+
+    private static void copyStream(InputStream inputStream, OutputStream outputStream) throws IOException {
+        final int buffer_size = 8 * 1024;
+        byte[] bytes = new byte[buffer_size];
+        for(;;)
+        {
+            int count = inputStream.read(bytes, 0, buffer_size);
+            if(count == -1)
+                break;
+            outputStream.write(bytes, 0, count);
+        }
+    }
+
+
+    // Reads the whole file. Null if it is missing, empty or shorter than it was a moment ago.
+    // Package private for PhotoReadBenchmark.
+    static byte[] readFile(File f) throws IOException {
+        long length = f.length();
+        if (length <= 0 || length > Integer.MAX_VALUE) {
+            return null;
+        }
+
+        FileInputStream is;
+        try {
+            is = new FileInputStream(f);
+        } catch (FileNotFoundException e) {
+            return null;
+        }
+
+        byte[] data = new byte[(int) length];
+        try {
+            int offset = 0;
+            while (offset < length) {
+                int count = is.read(data, offset, (int) length - offset);
+                if (count == -1) {
+                    return null;
+                }
+                offset += count;
+            }
+        } finally {
+            is.close();
+        }
+        return data;
+    }
+}
@@ -0,0 +1,223 @@
+package com.sudarshanbhat.memorygame.core;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.LinkedList;
+import java.util.List;
+
+/**
+ * Persisted cache of the last few parsed Flickr feeds, newest first, plus the
+ * urls of photos that were recently put on a board. Lets a new game start from
+ * photos that are already known (and usually already on disk) while a fresh
+ * feed is fetched in the background, without repeating recent photos.
+ *
+ * File format, after the header:
+ *   FEED fetchTimeMillis
+ *   PHOTO title<TAB>link<TAB>url     (one per photo of the feed above)
+ *   USED url
+ */
+public class FeedCache {
+
+    static final String MAGIC = "com.sudarshanbhat.memorygame.FeedCache";
+    static final String VERSION = "1";
+
+    private static final String FEED = "FEED";
+    private static final String PHOTO = "PHOTO";
+    private static final String USED = "USED";
+
+    public static final int DEFAULT_MAX_FEEDS = 5;
+    public static final int DEFAULT_MAX_RECENTLY_USED = 100;
+
+    public interface PhotoFilter {
+        public boolean accept(FlickrPhoto photo);
+    }
+
+    private final File mFile;
+    private final int mMaxFeeds;
+    private final int mMaxRecentlyUsed;
+
+    // Newest feed first
+    private final LinkedList<Feed> mFeeds = new LinkedList<Feed>();
+
+    // Oldest first
+    private final LinkedHashSet<String> mRecentlyUsed = new LinkedHashSet<String>();
+
+    private static class Feed {
+        final long fetchTime;
+        final ArrayList<FlickrPhoto> photos;
+
+        Feed(long fetchTime, ArrayList<FlickrPhoto> photos) {
+            this.fetchTime = fetchTime;
+            this.photos = photos;
+        }
+    }
+
+    public FeedCache(File file, int maxFeeds, int maxRecentlyUsed) {
+        mFile = file;
+        mMaxFeeds = maxFeeds;
+        mMaxRecentlyUsed = maxRecentlyUsed;
+    }
+
+
+    // Adds a freshly fetched feed, dropping the oldest one if there are too many
+    public synchronized void addFeed(List<FlickrPhoto> photos) {
+        if (photos.isEmpty()) {
+            return;
+        }
+
+        mFeeds.addFirst(new Feed(System.currentTimeMillis(), copyOf(photos)));
+        while (mFeeds.size() > mMaxFeeds) {
+            mFeeds.removeLast();
+        }
+    }
+
+
+    /**
+     * Picks up to count distinct photos that were not used recently, newest feed
+     * first, which the filter accepts (filter may be null). Returns copies.
+     */
+    public synchronized ArrayList<FlickrPhoto> pickUnusedPhotos(int count, PhotoFilter filter) {
+        ArrayList<FlickrPhoto> picked = new ArrayList<FlickrPhoto>(count);
+        HashSet<String> pickedUrls = new HashSet<String>();
+
+        for (Feed feed : mFeeds) {
+            for (FlickrPhoto photo : feed.photos) {
+                if (picked.size() == count) {
+                    return picked;
+                }
+                if (mRecentlyUsed.contains(photo.imageResourceLink)
+                        || pickedUrls.contains(photo.imageResourceLink)
+                        || (filter != null && !filter.accept(photo))) {
+                    continue;
+                }
+                pickedUrls.add(photo.imageResourceLink);
+                picked.add(copyOf(photo));
+            }
+        }
+        return picked;
+    }
+
+
+    // Remembers photos put on a board, so the next boards do not repeat them
+    public synchronized void markUsed(List<FlickrPhoto> photos) {
+        for (FlickrPhoto photo : photos) {
+            // Re-adding moves it to the newest end
+            mRecentlyUsed.remove(photo.imageResourceLink);
+            mRecentlyUsed.add(photo.imageResourceLink);
+        }
+
+        Iterator<String> iterator = mRecentlyUsed.iterator();
+        while (mRecentlyUsed.size() > mMaxRecentlyUsed && iterator.hasNext()) {
+            iterator.next();
+            iterator.remove();
+        }
+    }
+
+
+    // Reads the cache file. A missing or unreadable file leaves the cache empty.
+    public synchronized void load() {
+        mFeeds.clear();
+        mRecentlyUsed.clear();
+        if (!mFile.exists()) {
+            return;
+        }
+
+        try {
+            BufferedReader reader = new BufferedReader(
+                    new InputStreamReader(new FileInputStream(mFile), "UTF-8"));
+            try {
+                if (!MAGIC.equals(reader.readLine()) || !VERSION.equals(reader.readLine())) {
+                    return;
+                }
+
+                Feed feed = null;
+                String line;
+                while ((line = reader.readLine()) != null) {
+                    if (line.startsWith(FEED + ' ')) {
+                        feed = new Feed(Long.parseLong(line.substring(FEED.length() + 1)),
+                                new ArrayList<FlickrPhoto>());
+                        mFeeds.addLast(feed);
+                    }
+                    else if (line.startsWith(PHOTO + ' ') && feed != null) {
+                        String[] parts = line.substring(PHOTO.length() + 1).split("\t", -1);
+                        if (parts.length == 3) {
+                            feed.photos.add(new FlickrPhoto(parts[0], parts[1], parts[2]));
+                        }
+                    }
+                    else if (line.startsWith(USED + ' ')) {
+                        mRecentlyUsed.add(line.substring(USED.length() + 1));
+                    }
+                }
+            } finally {
+                reader.close();
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+            mFeeds.clear();
+            mRecentlyUsed.clear();
+        } catch (NumberFormatException e) {
+            e.printStackTrace();
+            mFeeds.clear();
+            mRecentlyUsed.clear();
+        }
+    }
+
+
+    // Writes the cache file through a temp file, so a crash never leaves it half written
+    public synchronized void save() throws IOException {
+        File tmpFile = new File(mFile.getPath() + ".tmp");
+        Writer writer = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(tmpFile), "UTF-8"));
+        try {
+            writer.write(MAGIC + "\n");
+            writer.write(VERSION + "\n");
+            for (Feed feed : mFeeds) {
+                writer.write(FEED + ' ' + feed.fetchTime + '\n');
+                for (FlickrPhoto photo : feed.photos) {
+                    writer.write(PHOTO + ' ' + clean(photo.imageTitle) + '\t' + clean(photo.imageLink)
+                            + '\t' + clean(photo.imageResourceLink) + '\n');
+                }
+            }
+            for (String url : mRecentlyUsed) {
+                writer.write(USED + ' ' + clean(url) + '\n');
+            }
+        } finally {
+            writer.close();
+        }
+
+        if (!tmpFile.renameTo(mFile)) {
+            tmpFile.delete();
+            throw new IOException("Cannot replace " + mFile);
+        }
+    }
+
+
+    // Tabs and line breaks would break the file format
+    private static String clean(String value) {
+        return value == null ? "" : value.replace('\t', ' ').replace('\n', ' ').replace('\r', ' ');
+    }
+
+
+    private static FlickrPhoto copyOf(FlickrPhoto photo) {
+        return new FlickrPhoto(photo.imageTitle, photo.imageLink, photo.imageResourceLink);
+    }
+
+
+    private static ArrayList<FlickrPhoto> copyOf(List<FlickrPhoto> photos) {
+        ArrayList<FlickrPhoto> copy = new ArrayList<FlickrPhoto>(photos.size());
+        for (FlickrPhoto photo : photos) {
+            copy.add(copyOf(photo));
+        }
+        return copy;
+    }
+}
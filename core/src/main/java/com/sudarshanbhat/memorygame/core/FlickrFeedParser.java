@@ -0,0 +1,101 @@
+package com.sudarshanbhat.memorygame.core;
+
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonToken;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.util.ArrayList;
+
+/**
+ * Streaming parser for the Flickr public photos feed. Builds FlickrPhotos
+ * straight from the response stream and stops reading as soon as it has
+ * enough of them, instead of buffering the body and building a JSON tree.
+ *
+ * Uses Gson's JsonReader, which has the same API as android.util.JsonReader
+ * but also runs on a plain JVM.
+ */
+public class FlickrFeedParser {
+
+    private FlickrFeedParser() {
+    }
+
+
+    // Parses at most maxPhotos items from a UTF-8 encoded feed. Does not close the stream.
+    public static ArrayList<FlickrPhoto> parse(InputStream inputStream, int maxPhotos) throws IOException {
+        ArrayList<FlickrPhoto> photos = new ArrayList<FlickrPhoto>(maxPhotos);
+
+        JsonReader reader = new JsonReader(new InputStreamReader(inputStream, "UTF-8"));
+        // Flickr escapes single quotes in titles, which strict JSON does not allow
+        reader.setLenient(true);
+
+        reader.beginObject();
+        while (reader.hasNext()) {
+            if (!"items".equals(reader.nextName())) {
+                reader.skipValue();
+                continue;
+            }
+
+            reader.beginArray();
+            while (reader.hasNext() && photos.size() < maxPhotos) {
+                FlickrPhoto photo = readItem(reader);
+                if (photo != null) {
+                    photos.add(photo);
+                }
+            }
+            // Rest of the feed is not needed
+            return photos;
+        }
+        return photos;
+    }
+
+
+    // Returns null for an item without a photo url
+    private static FlickrPhoto readItem(JsonReader reader) throws IOException {
+        String title = "";
+        String link = "";
+        String resourceLink = null;
+
+        reader.beginObject();
+        while (reader.hasNext()) {
+            String name = reader.nextName();
+            if ("title".equals(name)) {
+                title = readString(reader);
+            }
+            else if ("link".equals(name)) {
+                link = readString(reader);
+            }
+            else if ("media".equals(name) && reader.peek() == JsonToken.BEGIN_OBJECT) {
+                reader.beginObject();
+                while (reader.hasNext()) {
+                    if ("m".equals(reader.nextName())) {
+                        resourceLink = readString(reader);
+                    }
+                    else {
+                        reader.skipValue();
+                    }
+                }
+                reader.endObject();
+            }
+            else {
+                reader.skipValue();
+            }
+        }
+        reader.endObject();
+
+        if (resourceLink == null || resourceLink.length() == 0) {
+            return null;
+        }
+        return new FlickrPhoto(title, link, resourceLink);
+    }
+
+
+    private static String readString(JsonReader reader) throws IOException {
+        if (reader.peek() == JsonToken.NULL) {
+            reader.nextNull();
+            return "";
+        }
+        return reader.nextString();
+    }
+}
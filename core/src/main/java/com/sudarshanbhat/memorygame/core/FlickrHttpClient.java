@@ -0,0 +1,284 @@
+package com.sudarshanbhat.memorygame.core;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Singleton HTTP client shared by the feed fetch and the photo downloads.
+ * Connections are kept alive between requests, every request has connect and
+ * read timeouts, failed requests are retried with bounded exponential backoff,
+ * and conditional GETs are sent with the ETag / Last-Modified of the last
+ * successful response for that url.
+ */
+public class FlickrHttpClient {
+
+    public static final int DEFAULT_CONNECT_TIMEOUT_MS = 10 * 1000;
+    public static final int DEFAULT_READ_TIMEOUT_MS = 15 * 1000;
+    public static final int DEFAULT_MAX_RETRIES = 2;
+
+    private static final long INITIAL_BACKOFF_MS = 250;
+    private static final long MAX_BACKOFF_MS = 2000;
+
+    // Idle connections kept in the platform's keep-alive pool
+    private static final int MAX_IDLE_CONNECTIONS = 5;
+
+    private static FlickrHttpClient sInstance;
+
+    public static synchronized FlickrHttpClient getInstance() {
+        if (sInstance == null) {
+            sInstance = new FlickrHttpClient();
+        }
+
+        return sInstance;
+    }
+
+    private volatile int mConnectTimeoutMs = DEFAULT_CONNECT_TIMEOUT_MS;
+    private volatile int mReadTimeoutMs = DEFAULT_READ_TIMEOUT_MS;
+    private volatile int mMaxRetries = DEFAULT_MAX_RETRIES;
+
+    // Validators of the last 200 response per url, for conditional GETs
+    private final ConcurrentHashMap<String, Validators> mValidators = new ConcurrentHashMap<String, Validators>();
+
+    private final Stats mStats = new Stats();
+
+    // Singleton. Package private, so tests can have their own instance.
+    FlickrHttpClient() {
+        System.setProperty("http.keepAlive", "true");
+        System.setProperty("http.maxConnections", String.valueOf(MAX_IDLE_CONNECTIONS));
+    }
+
+
+    public void setTimeouts(int connectTimeoutMs, int readTimeoutMs) {
+        mConnectTimeoutMs = connectTimeoutMs;
+        mReadTimeoutMs = readTimeoutMs;
+    }
+
+
+    public void setMaxRetries(int maxRetries) {
+        mMaxRetries = maxRetries;
+    }
+
+
+    public Stats getStats() {
+        return mStats;
+    }
+
+
+    /**
+     * GETs the url. With conditional set, the stored validators for the url are sent
+     * and a 304 comes back as a response with isNotModified() true and no body.
+     * Connection failures and 5xx responses are retried. The caller must close()
+     * the response so the connection can go back to the keep-alive pool.
+     */
+    public Response get(String url, boolean conditional) throws IOException {
+        long backoffMs = INITIAL_BACKOFF_MS;
+        int attempt = 0;
+
+        while (true) {
+            long startTime = System.nanoTime();
+            try {
+                Response response = execute(url, conditional, startTime);
+                if (response.code < 500 || attempt >= mMaxRetries) {
+                    mStats.onResponse(response);
+                    return response;
+                }
+                response.close();
+            } catch (IOException e) {
+                if (attempt >= mMaxRetries) {
+                    mStats.onFailure(elapsedMillis(startTime));
+                    throw e;
+                }
+            }
+
+            attempt++;
+            mStats.onRetry();
+            try {
+                Thread.sleep(backoffMs);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IOException("Interrupted while retrying " + url);
+            }
+            backoffMs = Math.min(backoffMs * 2, MAX_BACKOFF_MS);
+        }
+    }
+
+
+    private Response execute(String url, boolean conditional, long startTime) throws IOException {
+        HttpURLConnection connection = (HttpURLConnection) new URL(url).openConnection();
+        connection.setConnectTimeout(mConnectTimeoutMs);
+        connection.setReadTimeout(mReadTimeoutMs);
+
+        Validators validators = conditional ? mValidators.get(url) : null;
+        if (validators != null) {
+            if (validators.etag != null) {
+                connection.setRequestProperty("If-None-Match", validators.etag);
+            }
+            if (validators.lastModified != null) {
+                connection.setRequestProperty("If-Modified-Since", validators.lastModified);
+            }
+        }
+
+        int code;
+        try {
+            code = connection.getResponseCode();
+        } catch (IOException e) {
+            connection.disconnect();
+            throw e;
+        }
+
+        if (conditional && code == HttpURLConnection.HTTP_OK) {
+            String etag = connection.getHeaderField("ETag");
+            String lastModified = connection.getHeaderField("Last-Modified");
+            if (etag != null || lastModified != null) {
+                mValidators.put(url, new Validators(etag, lastModified));
+            }
+        }
+
+        return new Response(connection, code, elapsedMillis(startTime));
+    }
+
+
+    // Forgets the validators for a url, e.g. when its cached body was lost
+    public void clearValidators(String url) {
+        mValidators.remove(url);
+    }
+
+
+    private static long elapsedMillis(long startTimeNanos) {
+        return (System.nanoTime() - startTimeNanos) / 1000000;
+    }
+
+
+    private static class Validators {
+        final String etag;
+        final String lastModified;
+
+        Validators(String etag, String lastModified) {
+            this.etag = etag;
+            this.lastModified = lastModified;
+        }
+    }
+
+
+    /**
+     * Response to a GET. The body is streamed from the connection.
+     */
+    public static class Response {
+        public final int code;
+
+        // Time until the response headers arrived
+        public final long headersMillis;
+
+        private final HttpURLConnection mConnection;
+        private InputStream mBody;
+
+        Response(HttpURLConnection connection, int code, long headersMillis) {
+            mConnection = connection;
+            this.code = code;
+            this.headersMillis = headersMillis;
+        }
+
+        public boolean isSuccessful() {
+            return code == HttpURLConnection.HTTP_OK;
+        }
+
+        public boolean isNotModified() {
+            return code == HttpURLConnection.HTTP_NOT_MODIFIED;
+        }
+
+        // -1 if the server did not send a length
+        public int getContentLength() {
+            return mConnection.getContentLength();
+        }
+
+        public InputStream getBody() throws IOException {
+            if (mBody == null) {
+                mBody = mConnection.getInputStream();
+            }
+            return mBody;
+        }
+
+        // Closes the body, leaving the connection to the keep-alive pool
+        public void close() {
+            try {
+                InputStream body = mBody != null ? mBody : (code >= 400 ? mConnection.getErrorStream() : null);
+                if (body != null) {
+                    body.close();
+                }
+            } catch (IOException e) {
+                // Connection will not be reused, nothing else to do
+                mConnection.disconnect();
+            }
+        }
+    }
+
+
+    /**
+     * Request counts and timings since the app started.
+     */
+    public static class Stats {
+        private int mRequestCount;
+        private int mFailureCount;
+        private int mRetryCount;
+        private int mNotModifiedCount;
+        private long mTotalHeadersMillis;
+        private long mMaxHeadersMillis;
+
+        synchronized void onResponse(Response response) {
+            mRequestCount++;
+            if (response.isNotModified()) {
+                mNotModifiedCount++;
+            }
+            if (response.code >= 500) {
+                mFailureCount++;
+            }
+            mTotalHeadersMillis += response.headersMillis;
+            mMaxHeadersMillis = Math.max(mMaxHeadersMillis, response.headersMillis);
+        }
+
+        synchronized void onFailure(long elapsedMillis) {
+            mRequestCount++;
+            mFailureCount++;
+            mTotalHeadersMillis += elapsedMillis;
+            mMaxHeadersMillis = Math.max(mMaxHeadersMillis, elapsedMillis);
+        }
+
+        synchronized void onRetry() {
+            mRetryCount++;
+        }
+
+        public synchronized int getRequestCount() {
+            return mRequestCount;
+        }
+
+        public synchronized int getFailureCount() {
+            return mFailureCount;
+        }
+
+        public synchronized int getRetryCount() {
+            return mRetryCount;
+        }
+
+        public synchronized int getNotModifiedCount() {
+            return mNotModifiedCount;
+        }
+
+        public synchronized long getAverageHeadersMillis() {
+            return mRequestCount != 0 ? mTotalHeadersMillis / mRequestCount : 0;
+        }
+
+        public synchronized long getMaxHeadersMillis() {
+            return mMaxHeadersMillis;
+        }
+
+        @Override
+        public synchronized String toString() {
+            return "HttpStats[requests=" + mRequestCount + ",failures=" + mFailureCount
+                    + ",retries=" + mRetryCount + ",notModified=" + mNotModifiedCount
+                    + ",avgHeadersMs=" + getAverageHeadersMillis() + ",maxHeadersMs=" + mMaxHeadersMillis + "]";
+        }
+    }
+}
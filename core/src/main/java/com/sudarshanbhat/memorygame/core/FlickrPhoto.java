@@ -0,0 +1,20 @@
+package com.sudarshanbhat.memorygame.core;
+
+/**
+ * Created by sudarshan on 8/21/14.
+ * Class that holds each Flickr Photo object details
+ * after parsing from the API's json response.
+ * Immutable. Whether a tile is hidden is board state, see GameBoard.
+ */
+public class FlickrPhoto {
+
+    public final String imageTitle;
+    public final String imageLink;
+    public final String imageResourceLink;
+
+    public FlickrPhoto(String title, String link, String resourceLink) {
+        imageTitle = title;
+        imageLink = link;
+        imageResourceLink = resourceLink;
+    }
+}
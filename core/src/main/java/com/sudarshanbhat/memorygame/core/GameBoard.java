@@ -0,0 +1,154 @@
+package com.sudarshanbhat.memorygame.core;
+
+import java.util.BitSet;
+import java.util.Random;
+
+/**
+ * Tile and quiz state of one game, without any UI.
+ *
+ * All tiles start shown. Once the memorize phase is over they are all hidden and
+ * the quiz asks for one hidden tile at a time. A correct guess reveals that tile
+ * and the quiz moves on to another hidden one; a wrong guess is counted. The game
+ * is over when no tile is hidden.
+ *
+ * Hiding the tiles shuffles the order they are quizzed in, so picking the next
+ * tile, checking a tile and counting the hidden ones are all constant time. The
+ * hidden tiles are always the ones from the current quiz position to the end of
+ * that order. The shuffle uses the board's Random; pass a seeded one to replay a game.
+ */
+public class GameBoard {
+
+    // No tile is being quizzed
+    public static final int NO_TILE = -1;
+
+    private final int mTileCount;
+    private final Random mRandom;
+    private final BitSet mHidden;
+
+    // Shuffled tiles, null until the tiles are hidden. Entries before mQuizPosition are revealed.
+    private int[] mQuizOrder;
+    private int mQuizPosition = 0;
+
+    private int mQuizTile = NO_TILE;
+    private int mWrongMoveCount = 0;
+
+    public GameBoard(int tileCount) {
+        this(tileCount, new Random());
+    }
+
+
+    public GameBoard(int tileCount, Random random) {
+        mTileCount = tileCount;
+        mRandom = random;
+        mHidden = new BitSet(tileCount);
+    }
+
+
+    // Restores a board from getTileCount(), getQuizOrder(), getQuizPosition(),
+    // getQuizTile() and getWrongMoveCount(). quizOrder is null if the tiles were never hidden.
+    public GameBoard(int tileCount, int[] quizOrder, int quizPosition, int quizTile, int wrongMoveCount,
+                     Random random) {
+        this(tileCount, random);
+        if (quizOrder != null) {
+            if (quizOrder.length != tileCount || quizPosition < 0 || quizPosition > tileCount) {
+                throw new IllegalArgumentException("Quiz order does not match " + tileCount + " tiles");
+            }
+            mQuizOrder = quizOrder.clone();
+            mQuizPosition = quizPosition;
+            for (int i = quizPosition; i < tileCount; i++) {
+                mHidden.set(mQuizOrder[i]);
+            }
+        }
+        mQuizTile = quizTile != NO_TILE && isHidden(quizTile) ? quizTile : NO_TILE;
+        mWrongMoveCount = wrongMoveCount;
+    }
+
+
+    public int getTileCount() {
+        return mTileCount;
+    }
+
+
+    public boolean isHidden(int position) {
+        return mHidden.get(position);
+    }
+
+
+    // Hides every tile, shuffles the quiz order and starts counting wrong moves from zero
+    public void hideAll() {
+        if (mQuizOrder == null) {
+            mQuizOrder = new int[mTileCount];
+        }
+        // Fisher-Yates, filling in the identity as it goes
+        for (int i = 0; i < mTileCount; i++) {
+            int j = mRandom.nextInt(i + 1);
+            mQuizOrder[i] = mQuizOrder[j];
+            mQuizOrder[j] = i;
+        }
+
+        mHidden.set(0, mTileCount);
+        mQuizPosition = 0;
+        mQuizTile = NO_TILE;
+        mWrongMoveCount = 0;
+    }
+
+
+    // Next hidden tile to quiz, or NO_TILE if none is hidden. Asking again before a
+    // correct guess returns the same tile.
+    public int nextQuizTile() {
+        mQuizTile = hasHiddenTiles() ? mQuizOrder[mQuizPosition] : NO_TILE;
+        return mQuizTile;
+    }
+
+
+    // Reveals the tile if it is the quizzed one and returns true. Otherwise counts a wrong move.
+    public boolean guess(int position) {
+        if (mQuizTile == NO_TILE || position != mQuizTile) {
+            mWrongMoveCount++;
+            return false;
+        }
+
+        mHidden.clear(position);
+        mQuizPosition++;
+        mQuizTile = NO_TILE;
+        return true;
+    }
+
+
+    public boolean hasHiddenTiles() {
+        return getHiddenTileCount() > 0;
+    }
+
+
+    public int getHiddenTileCount() {
+        return mQuizOrder != null ? mTileCount - mQuizPosition : 0;
+    }
+
+
+    // Stops the quiz without touching the tiles
+    public void endQuiz() {
+        mQuizTile = NO_TILE;
+    }
+
+
+    public int getQuizTile() {
+        return mQuizTile;
+    }
+
+
+    public int getWrongMoveCount() {
+        return mWrongMoveCount;
+    }
+
+
+    // Copy of the quiz order, for saving the board. Null if the tiles were never hidden.
+    public int[] getQuizOrder() {
+        return mQuizOrder != null ? mQuizOrder.clone() : null;
+    }
+
+
+    // Tiles revealed so far, for saving the board
+    public int getQuizPosition() {
+        return mQuizPosition;
+    }
+}
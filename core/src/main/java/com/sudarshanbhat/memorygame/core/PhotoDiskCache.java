@@ -0,0 +1,461 @@
+package com.sudarshanbhat.memorygame.core;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.RandomAccessFile;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.zip.CRC32;
+
+/**
+ * Size bounded disk cache for downloaded photos, evicting the least recently used
+ * files first. Entries are tracked in memory and every change is appended to a
+ * journal file, so the cache is rebuilt at startup by replaying the journal
+ * instead of stat'ing every file in the directory.
+ *
+ * Journal format, one operation per line after the header:
+ *   PUT key size crc32
+ *   READ key
+ *   REMOVE key
+ *
+ * Keys are SHA-1 digests of the url, see CacheKeys.diskKey().
+ *
+ * A process that dies while appending leaves the last line cut short. open()
+ * skips such lines and rewrites the journal without them; only a complete line
+ * with an unknown operation makes the whole journal unusable.
+ *
+ * Files are written to a temp file first and only renamed into place by commit()
+ * after their length and checksum are known, so a download that dies half way
+ * never shows up as a cached file. Left over temp files are deleted by open().
+ */
+public class PhotoDiskCache {
+
+    static final String JOURNAL_FILE = "journal";
+    static final String JOURNAL_FILE_TMP = "journal.tmp";
+    static final String MAGIC = "com.sudarshanbhat.memorygame.PhotoDiskCache";
+    static final String VERSION = "2";
+    static final String TEMP_SUFFIX = ".tmp";
+
+    private static final String PUT = "PUT";
+    private static final String READ = "READ";
+    private static final String REMOVE = "REMOVE";
+
+    // Journal is compacted once it has this many more lines than there are entries
+    private static final int REDUNDANT_OP_COMPACT_THRESHOLD = 2000;
+
+    private final File mDirectory;
+    private final File mJournalFile;
+    private long mMaxSize;
+    private long mSize;
+    private int mRedundantOpCount;
+    private Writer mJournalWriter;
+
+    // Access ordered: iteration starts at the least recently used entry
+    private final LinkedHashMap<String, Entry> mEntries = new LinkedHashMap<String, Entry>(0, 0.75f, true);
+
+    private static class Entry {
+        final long size;
+        final long checksum;
+
+        Entry(long size, long checksum) {
+            this.size = size;
+            this.checksum = checksum;
+        }
+    }
+
+    public PhotoDiskCache(File directory, long maxSize) {
+        mDirectory = directory;
+        mJournalFile = new File(directory, JOURNAL_FILE);
+        mMaxSize = maxSize;
+    }
+
+
+    // Reads the journal, or starts an empty cache if there is none or it is unreadable.
+    public synchronized void open() throws IOException {
+        if (!mDirectory.exists() && !mDirectory.mkdirs()) {
+            throw new IOException("Cannot create cache directory " + mDirectory);
+        }
+
+        if (mJournalFile.exists()) {
+            try {
+                boolean skippedLines = readJournal();
+                deleteUntrackedFiles();
+                if (skippedLines) {
+                    // Appending would glue the next operation onto the cut line
+                    rebuildJournal();
+                }
+                else {
+                    mJournalWriter = newJournalWriter(true);
+                }
+                trimToSize();
+                return;
+            } catch (IOException e) {
+                // Corrupt journal. Start over below.
+                e.printStackTrace();
+                mEntries.clear();
+                mSize = 0;
+            }
+        }
+
+        // No usable journal. Files in the directory cannot be trusted, so remove them.
+        deleteContents(mDirectory);
+        rebuildJournal();
+    }
+
+
+    public synchronized void close() throws IOException {
+        if (mJournalWriter != null) {
+            mJournalWriter.close();
+            mJournalWriter = null;
+        }
+    }
+
+
+    // Returns the cached file for the key, or null if it is not cached.
+    // A file whose length does not match what was committed is dropped.
+    public synchronized File get(String key) throws IOException {
+        Entry entry = mEntries.get(key);
+        if (entry == null) {
+            return null;
+        }
+
+        File file = getFile(key);
+        if (file.length() != entry.size) {
+            // Removed or changed behind our back
+            remove(key);
+            return null;
+        }
+
+        appendJournal(READ + ' ' + key);
+        return file;
+    }
+
+
+    // Checks data read from a cached file against the checksum recorded on commit.
+    // A corrupt entry is removed, so the caller can download it again.
+    public boolean verify(String key, byte[] data, int length) throws IOException {
+        CRC32 crc = new CRC32();
+        crc.update(data, 0, length);
+
+        synchronized (this) {
+            Entry entry = mEntries.get(key);
+            if (entry != null && entry.size == length && entry.checksum == crc.getValue()) {
+                return true;
+            }
+            remove(key);
+            return false;
+        }
+    }
+
+
+    // Committed file for a key
+    public File getFile(String key) {
+        return new File(mDirectory, key);
+    }
+
+
+    // File to write a new entry to before calling commit()
+    public File getTempFile(String key) {
+        return new File(mDirectory, key + TEMP_SUFFIX);
+    }
+
+
+    // Validates the temp file written for key and atomically moves it into place.
+    // expectedLength is the length the file must have, or -1 if not known.
+    // Returns false and deletes the temp file if it is empty, short or cannot be moved.
+    public boolean commit(String key, long expectedLength) throws IOException {
+        File tempFile = getTempFile(key);
+        long size = tempFile.length();
+        if (size <= 0 || (expectedLength >= 0 && size != expectedLength)) {
+            deleteIfExists(tempFile);
+            return false;
+        }
+
+        long checksum = checksum(tempFile);
+
+        synchronized (this) {
+            if (!tempFile.renameTo(getFile(key))) {
+                deleteIfExists(tempFile);
+                return false;
+            }
+
+            Entry previous = mEntries.put(key, new Entry(size, checksum));
+            if (previous != null) {
+                mSize -= previous.size;
+            }
+            mSize += size;
+
+            appendJournal(PUT + ' ' + key + ' ' + size + ' ' + checksum);
+            trimToSize();
+        }
+        return true;
+    }
+
+
+    // Throws away a temp file that will not be committed
+    public void abort(String key) {
+        getTempFile(key).delete();
+    }
+
+
+    public synchronized boolean remove(String key) throws IOException {
+        Entry entry = mEntries.remove(key);
+        if (entry == null) {
+            return false;
+        }
+
+        deleteIfExists(getFile(key));
+        mSize -= entry.size;
+        appendJournal(REMOVE + ' ' + key);
+        return true;
+    }
+
+
+    public synchronized boolean contains(String key) {
+        return mEntries.containsKey(key);
+    }
+
+
+    public synchronized long size() {
+        return mSize;
+    }
+
+
+    public synchronized long getMaxSize() {
+        return mMaxSize;
+    }
+
+
+    public synchronized void setMaxSize(long maxSize) throws IOException {
+        mMaxSize = maxSize;
+        trimToSize();
+    }
+
+
+    public File getDirectory() {
+        return mDirectory;
+    }
+
+
+    private void trimToSize() throws IOException {
+        Iterator<Map.Entry<String, Entry>> iterator = mEntries.entrySet().iterator();
+        while (mSize > mMaxSize && iterator.hasNext()) {
+            Map.Entry<String, Entry> eldest = iterator.next();
+            iterator.remove();
+            deleteIfExists(getFile(eldest.getKey()));
+            mSize -= eldest.getValue().size;
+            appendJournal(REMOVE + ' ' + eldest.getKey());
+        }
+    }
+
+
+    // Replays the journal. Returns true if lines were skipped, so the journal needs rewriting.
+    private boolean readJournal() throws IOException {
+        // A line without its newline was cut short, even if it looks complete
+        boolean lastLineComplete = endsWithNewline(mJournalFile);
+
+        BufferedReader reader = new BufferedReader(
+                new InputStreamReader(new FileInputStream(mJournalFile), "UTF-8"));
+        try {
+            String magic = reader.readLine();
+            String version = reader.readLine();
+            if (!MAGIC.equals(magic) || !VERSION.equals(version)) {
+                throw new IOException("Unexpected journal header: " + magic + ", " + version);
+            }
+
+            int lineCount = 0;
+            boolean skippedLines = false;
+            String line = reader.readLine();
+            while (line != null) {
+                String next = reader.readLine();
+                if ((next == null && !lastLineComplete) || !readJournalLine(line)) {
+                    skippedLines = true;
+                }
+                lineCount++;
+                line = next;
+            }
+            mRedundantOpCount = lineCount - mEntries.size();
+            return skippedLines;
+        } finally {
+            reader.close();
+        }
+    }
+
+
+    // Applies one journal line. Returns false for a known operation with missing or
+    // unreadable fields, which is skipped; the process died while writing it. Throws
+    // only for a complete line with an unknown operation.
+    private boolean readJournalLine(String line) throws IOException {
+        String[] parts = line.split(" ");
+        String op = parts[0];
+        int fieldCount = PUT.equals(op) ? 4 : READ.equals(op) || REMOVE.equals(op) ? 2 : -1;
+        if (fieldCount == -1) {
+            if (parts.length == 1) {
+                // Cut inside the operation name
+                return false;
+            }
+            throw new IOException("Unexpected journal line: " + line);
+        }
+        if (parts.length != fieldCount) {
+            return false;
+        }
+
+        String key = parts[1];
+        if (PUT.equals(op)) {
+            long size;
+            long checksum;
+            try {
+                size = Long.parseLong(parts[2]);
+                checksum = Long.parseLong(parts[3]);
+            } catch (NumberFormatException e) {
+                return false;
+            }
+            Entry previous = mEntries.put(key, new Entry(size, checksum));
+            if (previous != null) {
+                mSize -= previous.size;
+            }
+            mSize += size;
+        }
+        else if (READ.equals(op)) {
+            // Touch, moves the entry to the most recently used end
+            mEntries.get(key);
+        }
+        else {
+            Entry entry = mEntries.remove(key);
+            if (entry != null) {
+                mSize -= entry.size;
+            }
+        }
+        return true;
+    }
+
+
+    private static boolean endsWithNewline(File file) throws IOException {
+        RandomAccessFile raf = new RandomAccessFile(file, "r");
+        try {
+            long length = raf.length();
+            if (length == 0) {
+                return true;
+            }
+            raf.seek(length - 1);
+            return raf.read() == '\n';
+        } finally {
+            raf.close();
+        }
+    }
+
+
+    // Writes a compact journal with only the live entries and swaps it in
+    private void rebuildJournal() throws IOException {
+        if (mJournalWriter != null) {
+            mJournalWriter.close();
+        }
+
+        File tmpFile = new File(mDirectory, JOURNAL_FILE_TMP);
+        Writer writer = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(tmpFile), "UTF-8"));
+        try {
+            writer.write(MAGIC + "\n");
+            writer.write(VERSION + "\n");
+            for (Map.Entry<String, Entry> entry : mEntries.entrySet()) {
+                writer.write(PUT + ' ' + entry.getKey() + ' ' + entry.getValue().size
+                        + ' ' + entry.getValue().checksum + '\n');
+            }
+        } finally {
+            writer.close();
+        }
+
+        if (!tmpFile.renameTo(mJournalFile)) {
+            throw new IOException("Cannot replace journal " + mJournalFile);
+        }
+        mRedundantOpCount = 0;
+        mJournalWriter = newJournalWriter(true);
+    }
+
+
+    private void appendJournal(String line) throws IOException {
+        if (mJournalWriter == null) {
+            throw new IOException("Disk cache is not open");
+        }
+
+        mJournalWriter.write(line + '\n');
+        mJournalWriter.flush();
+
+        mRedundantOpCount++;
+        if (mRedundantOpCount >= REDUNDANT_OP_COMPACT_THRESHOLD && mRedundantOpCount >= mEntries.size()) {
+            rebuildJournal();
+        }
+    }
+
+
+    private Writer newJournalWriter(boolean append) throws IOException {
+        return new BufferedWriter(new OutputStreamWriter(new FileOutputStream(mJournalFile, append), "UTF-8"));
+    }
+
+
+    // Deletes temp files left behind by downloads that never finished, and files
+    // that were moved into place but never made it into the journal.
+    private void deleteUntrackedFiles() {
+        File[] files = mDirectory.listFiles();
+        if (files == null) {
+            return;
+        }
+
+        for (File file : files) {
+            String name = file.getName();
+            if (!name.equals(JOURNAL_FILE) && !mEntries.containsKey(name)) {
+                file.delete();
+            }
+        }
+    }
+
+
+    private static long checksum(File file) throws IOException {
+        CRC32 crc = new CRC32();
+        byte[] buffer = new byte[8 * 1024];
+        InputStream is = new FileInputStream(file);
+        try {
+            int count;
+            while ((count = is.read(buffer)) != -1) {
+                crc.update(buffer, 0, count);
+            }
+        } finally {
+            is.close();
+        }
+        return crc.getValue();
+    }
+
+
+    private void deleteContents(File directory) throws IOException {
+        File[] files = directory.listFiles();
+        if (files == null) {
+            throw new IOException("Not a directory: " + directory);
+        }
+
+        ArrayList<File> failed = new ArrayList<File>();
+        for (File file : files) {
+            if (file.isFile() && !file.delete()) {
+                failed.add(file);
+            }
+        }
+        if (!failed.isEmpty()) {
+            throw new IOException("Cannot delete " + failed);
+        }
+    }
+
+
+    private static void deleteIfExists(File file) throws IOException {
+        if (file.exists() && !file.delete()) {
+            throw new IOException("Cannot delete " + file);
+        }
+    }
+}
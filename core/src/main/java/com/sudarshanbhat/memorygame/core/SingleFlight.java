@@ -0,0 +1,93 @@
+package com.sudarshanbhat.memorygame.core;
+
+import java.util.HashMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+
+/**
+ * Runs at most one task per key at a time. Callers that ask for a key which is
+ * already running wait for that task and get its result instead of running their own.
+ *
+ * Waiters can be more urgent than the thread running the task, e.g. a photo on
+ * screen joining a look ahead load of it. Given Owners, a waiter is told who runs
+ * the task it waits for, so it can lend that thread its priority.
+ */
+public class SingleFlight<V> {
+
+    /**
+     * Identifies the work a thread is doing, so waiters can find the thread that
+     * runs their task. Both methods are called on the thread in question.
+     */
+    public interface Owners {
+        // Token for the calling thread's current work, kept with each task it runs
+        public Object currentOwner();
+
+        // The calling thread is about to wait for a task run by owner, which may be null
+        public void onWait(Object owner);
+    }
+
+    private final HashMap<String, Flight<V>> mInFlight = new HashMap<String, Flight<V>>();
+    private final Owners mOwners;
+
+    public SingleFlight() {
+        this(null);
+    }
+
+
+    public SingleFlight(Owners owners) {
+        mOwners = owners;
+    }
+
+
+    // Blocking. Returns the result of the task for this key, or null if it failed.
+    public V run(String key, Callable<V> callable) {
+        Flight<V> flight;
+        boolean isOwner = false;
+        synchronized (mInFlight) {
+            flight = mInFlight.get(key);
+            if (flight == null) {
+                flight = new Flight<V>(callable, mOwners != null ? mOwners.currentOwner() : null);
+                mInFlight.put(key, flight);
+                isOwner = true;
+            }
+        }
+
+        if (isOwner) {
+            try {
+                flight.task.run();
+            } finally {
+                synchronized (mInFlight) {
+                    mInFlight.remove(key);
+                }
+            }
+        }
+        else if (mOwners != null && !flight.task.isDone()) {
+            mOwners.onWait(flight.owner);
+        }
+
+        try {
+            return flight.task.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return null;
+        } catch (ExecutionException e) {
+            e.printStackTrace();
+            return null;
+        } catch (CancellationException e) {
+            return null;
+        }
+    }
+
+
+    private static class Flight<V> {
+        final FutureTask<V> task;
+        final Object owner;
+
+        Flight(Callable<V> callable, Object owner) {
+            this.task = new FutureTask<V>(callable);
+            this.owner = owner;
+        }
+    }
+}
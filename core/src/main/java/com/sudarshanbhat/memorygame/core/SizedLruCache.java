@@ -0,0 +1,253 @@
+package com.sudarshanbhat.memorygame.core;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Least recently used cache bounded by the total size of its values, as measured
+ * by sizeOf(). Same contract as the support library's LruCache, so the memory
+ * tiers do not depend on Android and their hit path can be benchmarked on a JVM.
+ *
+ * Thread safe. get() takes no lock: it stamps the entry with the current access
+ * tick and returns. Writers hold the cache's lock, advance the tick and evict the
+ * entry with the oldest stamp. Entries read between the same two writes share a
+ * stamp, which is all the recency eviction needs. A get() racing an eviction may
+ * still return the evicted value. entryRemoved() is called without the lock held.
+ */
+public class SizedLruCache<K, V> {
+
+    private final ConcurrentHashMap<K, Entry<K, V>> mMap = new ConcurrentHashMap<K, Entry<K, V>>();
+
+    // Advanced by writers only, so readers never write to a shared location
+    private volatile long mTick;
+
+    // Guarded by this
+    private int mSize;
+    private int mMaxSize;
+    private int mPutCount;
+    private int mEvictionCount;
+
+    private final AtomicInteger mHitCount = new AtomicInteger();
+    private final AtomicInteger mMissCount = new AtomicInteger();
+
+    private static class Entry<K, V> {
+        final K key;
+        final V value;
+        final int size;
+        volatile long lastAccess;
+
+        Entry(K key, V value, int size, long lastAccess) {
+            this.key = key;
+            this.value = value;
+            this.size = size;
+            this.lastAccess = lastAccess;
+        }
+    }
+
+    private static final Comparator<Entry<?, ?>> LEAST_RECENT_FIRST = new Comparator<Entry<?, ?>>() {
+        @Override
+        public int compare(Entry<?, ?> a, Entry<?, ?> b) {
+            long x = a.lastAccess;
+            long y = b.lastAccess;
+            return x < y ? -1 : (x == y ? 0 : 1);
+        }
+    };
+
+    public SizedLruCache(int maxSize) {
+        if (maxSize <= 0) {
+            throw new IllegalArgumentException("maxSize <= 0");
+        }
+        mMaxSize = maxSize;
+    }
+
+
+    // Returns the value for key and makes it the most recently used, or null
+    public final V get(K key) {
+        if (key == null) {
+            throw new NullPointerException("key == null");
+        }
+
+        Entry<K, V> entry = mMap.get(key);
+        if (entry == null) {
+            mMissCount.incrementAndGet();
+            return null;
+        }
+
+        // Hot entries are read by several threads; skip the write if it changes nothing
+        long tick = mTick;
+        if (entry.lastAccess != tick) {
+            entry.lastAccess = tick;
+        }
+        mHitCount.incrementAndGet();
+        return entry.value;
+    }
+
+
+    // Returns the value for key without counting a hit or making it more recent, or null
+    public final V peek(K key) {
+        Entry<K, V> entry = mMap.get(key);
+        return entry != null ? entry.value : null;
+    }
+
+
+    // Caches value for key, evicting least recently used entries as needed.
+    // Returns the previous value, or null.
+    public final V put(K key, V value) {
+        if (key == null || value == null) {
+            throw new NullPointerException("key == null || value == null");
+        }
+
+        Entry<K, V> previous;
+        synchronized (this) {
+            mPutCount++;
+            int size = safeSizeOf(key, value);
+            // The tick moves past the new entry, so later reads of any entry order after it
+            previous = mMap.put(key, new Entry<K, V>(key, value, size, mTick + 1));
+            mTick += 2;
+            mSize += size;
+            if (previous != null) {
+                mSize -= previous.size;
+            }
+        }
+
+        if (previous != null) {
+            entryRemoved(false, key, previous.value, value);
+        }
+
+        trimToSize(mMaxSize);
+        return previous != null ? previous.value : null;
+    }
+
+
+    public final V remove(K key) {
+        if (key == null) {
+            throw new NullPointerException("key == null");
+        }
+
+        Entry<K, V> previous;
+        synchronized (this) {
+            previous = mMap.remove(key);
+            if (previous != null) {
+                mSize -= previous.size;
+            }
+        }
+
+        if (previous != null) {
+            entryRemoved(false, key, previous.value, null);
+            return previous.value;
+        }
+        return null;
+    }
+
+
+    // Evicts least recently used entries until the total size is at most maxSize
+    public void trimToSize(int maxSize) {
+        while (true) {
+            Entry<K, V> entry;
+            synchronized (this) {
+                if (mSize <= maxSize || mMap.isEmpty()) {
+                    break;
+                }
+
+                entry = findEldest();
+                mMap.remove(entry.key);
+                mSize -= entry.size;
+                mEvictionCount++;
+            }
+
+            entryRemoved(true, entry.key, entry.value, null);
+        }
+    }
+
+
+    public final void evictAll() {
+        trimToSize(-1);
+    }
+
+
+    // Size of an entry in the units of maxSize. Must not change while it is cached.
+    protected int sizeOf(K key, V value) {
+        return 1;
+    }
+
+
+    // Called for entries that are evicted (evicted true), removed or replaced
+    protected void entryRemoved(boolean evicted, K key, V oldValue, V newValue) {
+    }
+
+
+    public synchronized final int size() {
+        return mSize;
+    }
+
+    public synchronized final int maxSize() {
+        return mMaxSize;
+    }
+
+    public final int hitCount() {
+        return mHitCount.get();
+    }
+
+    public final int missCount() {
+        return mMissCount.get();
+    }
+
+    public synchronized final int putCount() {
+        return mPutCount;
+    }
+
+    public synchronized final int evictionCount() {
+        return mEvictionCount;
+    }
+
+
+    // Copy of the entries, least recently used first
+    public synchronized final Map<K, V> snapshot() {
+        List<Entry<K, V>> entries = new ArrayList<Entry<K, V>>(mMap.values());
+        Collections.sort(entries, LEAST_RECENT_FIRST);
+
+        LinkedHashMap<K, V> snapshot = new LinkedHashMap<K, V>(entries.size());
+        for (Entry<K, V> entry : entries) {
+            snapshot.put(entry.key, entry.value);
+        }
+        return snapshot;
+    }
+
+
+    @Override
+    public synchronized final String toString() {
+        int hits = mHitCount.get();
+        int accesses = hits + mMissCount.get();
+        int hitPercent = accesses != 0 ? (100 * hits / accesses) : 0;
+        return "SizedLruCache[size=" + mSize + ",maxSize=" + mMaxSize + ",hits=" + hits
+                + ",misses=" + (accesses - hits) + ",hitRate=" + hitPercent + "%]";
+    }
+
+
+    // Linear in the number of entries. Tiers hold at most a few hundred photos, and
+    // evictions happen on loader threads right after a decode that costs far more.
+    private Entry<K, V> findEldest() {
+        Entry<K, V> eldest = null;
+        for (Entry<K, V> entry : mMap.values()) {
+            if (eldest == null || entry.lastAccess < eldest.lastAccess) {
+                eldest = entry;
+            }
+        }
+        return eldest;
+    }
+
+
+    private int safeSizeOf(K key, V value) {
+        int size = sizeOf(key, value);
+        if (size < 0) {
+            throw new IllegalStateException("Negative size: " + key + "=" + value);
+        }
+        return size;
+    }
+}
@@ -0,0 +1,28 @@
+package com.sudarshanbhat.memorygame.core;
+
+/**
+ * Fixed set of lock objects shared by hash of a key. Work on the same key is always
+ * serialized; work on different keys only contends when they land on the same stripe.
+ * Cheaper than a lock per key, which would need its own map and cleanup.
+ */
+public class StripedLocks {
+
+    private final Object[] mLocks;
+
+    public StripedLocks(int stripes) {
+        if (stripes < 1) {
+            throw new IllegalArgumentException("Need at least one stripe");
+        }
+
+        mLocks = new Object[stripes];
+        for (int i = 0; i < stripes; i++) {
+            mLocks[i] = new Object();
+        }
+    }
+
+
+    // Lock to synchronize on for this key
+    public Object get(String key) {
+        return mLocks[(key.hashCode() & 0x7fffffff) % mLocks.length];
+    }
+}
@@ -0,0 +1,292 @@
+package com.sudarshanbhat.memorygame.core;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class EncodedPhotoStoreTest {
+
+    private static final int PHOTO_COUNT = 24;
+    private static final int PHOTO_SIZE = 3000;
+    private static final int THREAD_COUNT = 16;
+    private static final int ROUNDS = 4;
+
+    @Rule
+    public TemporaryFolder mFolder = new TemporaryFolder();
+
+    private MockHttpServer mServer;
+    private ExecutorService mDiskWriteExecutor;
+    private ExecutorService mLoaders;
+    private PhotoDiskCache mDiskCache;
+    private EncodedPhotoStore mStore;
+    private final AtomicInteger mDiskErrors = new AtomicInteger();
+
+    @Before
+    public void setUp() throws IOException {
+        mServer = new MockHttpServer();
+        for (int i = 0; i < PHOTO_COUNT; i++) {
+            mServer.setBody(path(i), photo(i));
+        }
+        mDiskWriteExecutor = Executors.newSingleThreadExecutor();
+        mLoaders = Executors.newFixedThreadPool(THREAD_COUNT);
+    }
+
+
+    @After
+    public void tearDown() throws Exception {
+        mLoaders.shutdownNow();
+        awaitDiskWrites();
+        mDiskCache.close();
+        mServer.shutdown();
+    }
+
+
+    @Test
+    public void streamingLoadsFetchEachPhotoOnce() throws Exception {
+        // Memory tier holds two photos, so most loads go to disk or to pending writes
+        openStore(100 * PHOTO_SIZE, 2 * PHOTO_SIZE);
+        mStore.setStreaming(true);
+
+        loadConcurrently();
+
+        for (int i = 0; i < PHOTO_COUNT; i++) {
+            assertEquals("Fetches of " + path(i), 1, mServer.getRequestCount(path(i)));
+        }
+        assertEquals(0, mDiskErrors.get());
+        assertDiskCacheIntact();
+    }
+
+
+    @Test
+    public void diskFirstLoadsFetchEachPhotoOnce() throws Exception {
+        openStore(100 * PHOTO_SIZE, 2 * PHOTO_SIZE);
+        mStore.setStreaming(false);
+
+        loadConcurrently();
+
+        for (int i = 0; i < PHOTO_COUNT; i++) {
+            assertEquals("Fetches of " + path(i), 1, mServer.getRequestCount(path(i)));
+        }
+        assertEquals(0, mDiskErrors.get());
+        assertDiskCacheIntact();
+    }
+
+
+    @Test
+    public void photosTrimmedWhileLoadingAreFetchedAgain() throws Exception {
+        // Disk cache holds three photos, so commits keep trimming files other threads read
+        openStore(3 * PHOTO_SIZE, PHOTO_SIZE);
+        mStore.setStreaming(false);
+
+        loadConcurrently();
+
+        assertTrue(mServer.getRequestCount() > PHOTO_COUNT);
+        assertDiskCacheIntact();
+    }
+
+
+    @Test
+    public void corruptFileIsFetchedAgain() throws Exception {
+        openStore(100 * PHOTO_SIZE, PHOTO_SIZE);
+        mStore.setStreaming(false);
+        String url = mServer.url(path(0));
+        assertArrayEquals(photo(0), mStore.get(url));
+
+        // Same length, other bytes, and out of the memory tier
+        byte[] corrupt = photo(0);
+        corrupt[100]++;
+        writeFile(mDiskCache.getFile(CacheKeys.diskKey(url)), corrupt);
+        mStore.getMemoryCache().evictAll();
+
+        assertArrayEquals(photo(0), mStore.get(url));
+        assertEquals(2, mServer.getRequestCount(path(0)));
+        assertEquals(1, mDiskErrors.get());
+    }
+
+
+    @Test
+    public void missingFileIsFetchedAgain() throws Exception {
+        openStore(100 * PHOTO_SIZE, PHOTO_SIZE);
+        mStore.setStreaming(false);
+        String url = mServer.url(path(0));
+        assertArrayEquals(photo(0), mStore.get(url));
+
+        assertTrue(mDiskCache.getFile(CacheKeys.diskKey(url)).delete());
+        mStore.getMemoryCache().evictAll();
+
+        assertArrayEquals(photo(0), mStore.get(url));
+        assertEquals(2, mServer.getRequestCount(path(0)));
+    }
+
+
+    // Another photo's commit trims this one between the lookup and the read of its file
+    @Test
+    public void fileTrimmedAfterLookupIsFetchedAgain() throws Exception {
+        final AtomicInteger trims = new AtomicInteger();
+        openStore(new PhotoDiskCache(mFolder.newFolder("cache"), 100 * PHOTO_SIZE) {
+            @Override
+            public synchronized File get(String key) throws IOException {
+                File file = super.get(key);
+                if (file != null && trims.getAndIncrement() == 0) {
+                    remove(key);
+                }
+                return file;
+            }
+        }, PHOTO_SIZE);
+        mStore.setStreaming(false);
+        String url = mServer.url(path(0));
+        assertArrayEquals(photo(0), mStore.get(url));
+        mStore.getMemoryCache().evictAll();
+
+        assertArrayEquals(photo(0), mStore.get(url));
+        assertEquals(1, trims.get());
+        assertEquals(2, mServer.getRequestCount(path(0)));
+        assertTrue(mDiskCache.contains(CacheKeys.diskKey(url)));
+    }
+
+
+    private void openStore(long diskCacheSize, int memoryCacheSize) throws IOException {
+        openStore(new PhotoDiskCache(mFolder.newFolder("cache"), diskCacheSize), memoryCacheSize);
+    }
+
+
+    private void openStore(PhotoDiskCache diskCache, int memoryCacheSize) throws IOException {
+        mDiskCache = diskCache;
+        mDiskCache.open();
+
+        mStore = new EncodedPhotoStore(new FlickrHttpClient(), mDiskWriteExecutor, memoryCacheSize,
+                new EncodedPhotoStore.Listener() {
+                    @Override
+                    public void onDiskError() {
+                        mDiskErrors.incrementAndGet();
+                    }
+                });
+        mStore.setDiskCache(mDiskCache);
+    }
+
+
+    // Every thread loads every photo, in its own order, a few times over. Each load
+    // must come back with exactly the bytes the server has for that photo.
+    private void loadConcurrently() throws Exception {
+        mServer.setResponseDelay(5);
+
+        List<Future<Integer>> results = new ArrayList<Future<Integer>>();
+        for (int t = 0; t < THREAD_COUNT; t++) {
+            final Random random = new Random(t);
+            results.add(mLoaders.submit(new Callable<Integer>() {
+                @Override
+                public Integer call() throws Exception {
+                    List<Integer> order = new ArrayList<Integer>();
+                    for (int i = 0; i < PHOTO_COUNT; i++) {
+                        order.add(i);
+                    }
+
+                    int loads = 0;
+                    for (int round = 0; round < ROUNDS; round++) {
+                        Collections.shuffle(order, random);
+                        for (int i : order) {
+                            byte[] data = mStore.get(mServer.url(path(i)));
+                            if (!Arrays.equals(photo(i), data)) {
+                                throw new AssertionError("Wrong bytes for " + path(i));
+                            }
+                            loads++;
+                        }
+                    }
+                    return loads;
+                }
+            }));
+        }
+
+        for (Future<Integer> result : results) {
+            assertEquals(ROUNDS * PHOTO_COUNT, (int) result.get(30, TimeUnit.SECONDS));
+        }
+    }
+
+
+    // Every file left in the cache matches its journal entry and its photo
+    private void assertDiskCacheIntact() throws Exception {
+        awaitDiskWrites();
+        mDiskCache.close();
+        mDiskCache.open();
+
+        int cached = 0;
+        for (int i = 0; i < PHOTO_COUNT; i++) {
+            String key = CacheKeys.diskKey(mServer.url(path(i)));
+            if (!mDiskCache.contains(key)) {
+                continue;
+            }
+            cached++;
+            byte[] data = readFile(mDiskCache.get(key));
+            assertArrayEquals(photo(i), data);
+            assertTrue(mDiskCache.verify(key, data, data.length));
+        }
+        assertEquals(cached * PHOTO_SIZE, mDiskCache.size());
+        assertTrue(mDiskCache.size() <= mDiskCache.getMaxSize());
+    }
+
+
+    private void awaitDiskWrites() throws InterruptedException {
+        mDiskWriteExecutor.shutdown();
+        assertTrue(mDiskWriteExecutor.awaitTermination(10, TimeUnit.SECONDS));
+    }
+
+
+    private static String path(int i) {
+        return "/photos/" + i + ".jpg";
+    }
+
+
+    private static byte[] photo(int seed) {
+        byte[] data = new byte[PHOTO_SIZE];
+        new Random(seed).nextBytes(data);
+        return data;
+    }
+
+
+    private static byte[] readFile(File file) throws IOException {
+        byte[] data = new byte[(int) file.length()];
+        FileInputStream is = new FileInputStream(file);
+        try {
+            int offset = 0;
+            while (offset < data.length) {
+                offset += is.read(data, offset, data.length - offset);
+            }
+        } finally {
+            is.close();
+        }
+        return data;
+    }
+
+
+    private static void writeFile(File file, byte[] data) throws IOException {
+        OutputStream os = new FileOutputStream(file);
+        try {
+            os.write(data);
+        } finally {
+            os.close();
+        }
+    }
+}
@@ -0,0 +1,192 @@
+package com.sudarshanbhat.memorygame.core;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.SocketTimeoutException;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class FlickrHttpClientTest {
+
+    private static final String ETAG = "\"feed-1\"";
+    private static final String LAST_MODIFIED = "Sat, 17 Oct 2026 10:00:00 GMT";
+
+    private MockHttpServer mServer;
+    private FlickrHttpClient mClient;
+    private String mUrl;
+
+    @Before
+    public void setUp() throws IOException {
+        mServer = new MockHttpServer();
+        mClient = new FlickrHttpClient();
+        mClient.setTimeouts(1000, 1000);
+        mUrl = mServer.url("/feed");
+    }
+
+
+    @After
+    public void tearDown() {
+        mServer.shutdown();
+    }
+
+
+    @Test
+    public void connectionIsKeptAlive() throws IOException {
+        for (int i = 0; i < 3; i++) {
+            mServer.enqueue(200, "photo " + i);
+        }
+
+        for (int i = 0; i < 3; i++) {
+            assertEquals("photo " + i, readBody(mClient.get(mServer.url("/photo" + i), false)));
+        }
+        assertEquals(3, mServer.getRequestCount());
+        assertEquals(1, mServer.getConnectionCount());
+    }
+
+
+    @Test
+    public void readTimeoutFailsRequest() throws IOException {
+        mServer.enqueue(MockHttpServer.NO_RESPONSE, "");
+        mServer.enqueue(MockHttpServer.NO_RESPONSE, "");
+        mClient.setTimeouts(1000, 200);
+        mClient.setMaxRetries(0);
+
+        long startTime = System.nanoTime();
+        try {
+            mClient.get(mUrl, false);
+            fail("Expected a timeout");
+        } catch (SocketTimeoutException e) {
+            // Expected
+        }
+        assertTrue((System.nanoTime() - startTime) / 1000000 < 1000);
+        assertEquals(1, mClient.getStats().getRequestCount());
+        assertEquals(1, mClient.getStats().getFailureCount());
+    }
+
+
+    @Test
+    public void timeoutIsRetried() throws IOException {
+        mServer.enqueue(MockHttpServer.NO_RESPONSE, "");
+        mServer.enqueue(200, "feed");
+        mClient.setTimeouts(1000, 200);
+        mClient.setMaxRetries(1);
+
+        assertEquals("feed", readBody(mClient.get(mUrl, false)));
+        assertEquals(1, mClient.getStats().getRetryCount());
+        assertEquals(0, mClient.getStats().getFailureCount());
+    }
+
+
+    @Test
+    public void serverErrorIsRetried() throws IOException {
+        mServer.enqueue(503, "busy");
+        mServer.enqueue(200, "feed");
+
+        FlickrHttpClient.Response response = mClient.get(mUrl, false);
+        assertTrue(response.isSuccessful());
+        assertEquals("feed", readBody(response));
+        assertEquals(2, mServer.getRequestCount());
+        assertEquals(1, mClient.getStats().getRetryCount());
+    }
+
+
+    @Test
+    public void lastServerErrorIsReturned() throws IOException {
+        mServer.enqueue(503, "busy");
+        mServer.enqueue(503, "busy");
+        mServer.enqueue(200, "feed");
+        mClient.setMaxRetries(1);
+
+        FlickrHttpClient.Response response = mClient.get(mUrl, false);
+        response.close();
+        assertEquals(503, response.code);
+        assertEquals(2, mServer.getRequestCount());
+        assertEquals(1, mClient.getStats().getFailureCount());
+    }
+
+
+    @Test
+    public void clientErrorIsNotRetried() throws IOException {
+        mServer.enqueue(404, "gone");
+        mServer.enqueue(200, "feed");
+
+        FlickrHttpClient.Response response = mClient.get(mUrl, false);
+        response.close();
+        assertEquals(404, response.code);
+        assertEquals(1, mServer.getRequestCount());
+        assertEquals(0, mClient.getStats().getRetryCount());
+    }
+
+
+    @Test
+    public void conditionalGetSendsValidators() throws IOException, InterruptedException {
+        mServer.enqueue(200, "feed", "ETag: " + ETAG, "Last-Modified: " + LAST_MODIFIED);
+        mServer.enqueue(304, "");
+
+        assertEquals("feed", readBody(mClient.get(mUrl, true)));
+        assertNull(mServer.takeRequest().getHeader("If-None-Match"));
+
+        FlickrHttpClient.Response response = mClient.get(mUrl, true);
+        response.close();
+        assertTrue(response.isNotModified());
+        assertFalse(response.isSuccessful());
+
+        MockHttpServer.RecordedRequest request = mServer.takeRequest();
+        assertEquals(ETAG, request.getHeader("If-None-Match"));
+        assertEquals(LAST_MODIFIED, request.getHeader("If-Modified-Since"));
+        assertEquals(1, mClient.getStats().getNotModifiedCount());
+    }
+
+
+    @Test
+    public void unconditionalGetSendsNoValidators() throws IOException, InterruptedException {
+        mServer.enqueue(200, "feed", "ETag: " + ETAG);
+        mServer.enqueue(200, "feed");
+
+        readBody(mClient.get(mUrl, true));
+        readBody(mClient.get(mUrl, false));
+
+        mServer.takeRequest();
+        assertNull(mServer.takeRequest().getHeader("If-None-Match"));
+    }
+
+
+    @Test
+    public void clearedValidatorsAreNotSent() throws IOException, InterruptedException {
+        mServer.enqueue(200, "feed", "ETag: " + ETAG);
+        mServer.enqueue(200, "feed");
+
+        readBody(mClient.get(mUrl, true));
+        mClient.clearValidators(mUrl);
+        readBody(mClient.get(mUrl, true));
+
+        mServer.takeRequest();
+        assertNull(mServer.takeRequest().getHeader("If-None-Match"));
+    }
+
+
+    // Reads the body to the end and closes the response, as the photo downloads do
+    private static String readBody(FlickrHttpClient.Response response) throws IOException {
+        try {
+            InputStream is = response.getBody();
+            ByteArrayOutputStream os = new ByteArrayOutputStream();
+            byte[] buffer = new byte[1024];
+            int count;
+            while ((count = is.read(buffer)) != -1) {
+                os.write(buffer, 0, count);
+            }
+            return os.toString("UTF-8");
+        } finally {
+            response.close();
+        }
+    }
+}
@@ -0,0 +1,231 @@
+package com.sudarshanbhat.memorygame.core;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Random;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class GameBoardTest {
+
+    // 3x3 to 8x8, the board sizes the game offers
+    private static final int MIN_BOARD_SIZE = 3;
+    private static final int MAX_BOARD_SIZE = 8;
+
+    @Test
+    public void tilesStartShown() {
+        GameBoard board = new GameBoard(9, new Random(1));
+
+        for (int i = 0; i < 9; i++) {
+            assertFalse(board.isHidden(i));
+        }
+        assertFalse(board.hasHiddenTiles());
+        assertEquals(GameBoard.NO_TILE, board.nextQuizTile());
+        assertNull(board.getQuizOrder());
+    }
+
+
+    @Test
+    public void quizAsksForEveryTileOnce() {
+        for (int size = MIN_BOARD_SIZE; size <= MAX_BOARD_SIZE; size++) {
+            int tileCount = size * size;
+            GameBoard board = new GameBoard(tileCount, new Random(size));
+            board.hideAll();
+            assertEquals(tileCount, board.getHiddenTileCount());
+
+            BitSet asked = new BitSet(tileCount);
+            for (int guesses = 0; guesses < tileCount; guesses++) {
+                int tile = board.nextQuizTile();
+                assertTrue("Quizzed tile " + tile + " is hidden", board.isHidden(tile));
+                assertFalse("Tile " + tile + " asked twice", asked.get(tile));
+                asked.set(tile);
+
+                assertTrue(board.guess(tile));
+                assertFalse(board.isHidden(tile));
+                assertEquals(tileCount - guesses - 1, board.getHiddenTileCount());
+            }
+
+            assertEquals(tileCount, asked.cardinality());
+            assertFalse(board.hasHiddenTiles());
+            assertEquals(GameBoard.NO_TILE, board.nextQuizTile());
+            assertEquals(0, board.getWrongMoveCount());
+        }
+    }
+
+
+    @Test
+    public void quizOrderIsAPermutation() {
+        for (int size = MIN_BOARD_SIZE; size <= MAX_BOARD_SIZE; size++) {
+            int tileCount = size * size;
+            GameBoard board = new GameBoard(tileCount, new Random(size));
+            board.hideAll();
+
+            int[] order = board.getQuizOrder();
+            Arrays.sort(order);
+            for (int i = 0; i < tileCount; i++) {
+                assertEquals(i, order[i]);
+            }
+        }
+    }
+
+
+    @Test
+    public void askingAgainReturnsTheSameTile() {
+        GameBoard board = new GameBoard(16, new Random(2));
+        board.hideAll();
+
+        int tile = board.nextQuizTile();
+        assertEquals(tile, board.nextQuizTile());
+        assertEquals(tile, board.getQuizTile());
+    }
+
+
+    @Test
+    public void wrongMovesAreCounted() {
+        GameBoard board = new GameBoard(9, new Random(3));
+        board.hideAll();
+
+        // No tile quizzed yet
+        assertFalse(board.guess(0));
+        assertEquals(1, board.getWrongMoveCount());
+
+        int tile = board.nextQuizTile();
+        int other = (tile + 1) % 9;
+        assertFalse(board.guess(other));
+        assertEquals(2, board.getWrongMoveCount());
+        assertTrue("A wrong guess reveals nothing", board.isHidden(other));
+        assertEquals("A wrong guess keeps the quiz tile", tile, board.getQuizTile());
+
+        assertTrue(board.guess(tile));
+        assertEquals(2, board.getWrongMoveCount());
+
+        // The tile just revealed is not quizzed any more
+        board.nextQuizTile();
+        assertFalse(board.guess(tile));
+        assertEquals(3, board.getWrongMoveCount());
+
+        board.endQuiz();
+        assertEquals(GameBoard.NO_TILE, board.getQuizTile());
+        assertFalse(board.guess(board.getQuizOrder()[1]));
+        assertEquals(4, board.getWrongMoveCount());
+    }
+
+
+    @Test
+    public void hidingAgainStartsAFreshQuiz() {
+        GameBoard board = new GameBoard(9, new Random(4));
+        board.hideAll();
+        board.guess(board.nextQuizTile());
+        board.guess(GameBoard.NO_TILE);
+
+        board.hideAll();
+
+        assertEquals(9, board.getHiddenTileCount());
+        assertEquals(0, board.getQuizPosition());
+        assertEquals(GameBoard.NO_TILE, board.getQuizTile());
+        assertEquals(0, board.getWrongMoveCount());
+    }
+
+
+    @Test
+    public void sameSeedReplaysTheSameQuiz() {
+        GameBoard a = new GameBoard(36, new Random(5));
+        GameBoard b = new GameBoard(36, new Random(5));
+        a.hideAll();
+        b.hideAll();
+
+        assertArrayEquals(a.getQuizOrder(), b.getQuizOrder());
+    }
+
+
+    @Test
+    public void restoredBoardContinuesWhereItStopped() {
+        for (int size = MIN_BOARD_SIZE; size <= MAX_BOARD_SIZE; size++) {
+            int tileCount = size * size;
+            GameBoard board = new GameBoard(tileCount, new Random(size));
+            board.hideAll();
+            for (int i = 0; i < tileCount / 2; i++) {
+                board.guess(board.nextQuizTile());
+            }
+            board.guess(GameBoard.NO_TILE);
+            int quizTile = board.nextQuizTile();
+
+            GameBoard restored = restore(board);
+
+            assertEquals(tileCount, restored.getTileCount());
+            assertEquals(board.getHiddenTileCount(), restored.getHiddenTileCount());
+            assertEquals(quizTile, restored.getQuizTile());
+            assertEquals(1, restored.getWrongMoveCount());
+            for (int i = 0; i < tileCount; i++) {
+                assertEquals("Tile " + i + " of " + tileCount, board.isHidden(i), restored.isHidden(i));
+            }
+
+            // Both quiz the same tiles in the same order to the end
+            while (board.hasHiddenTiles()) {
+                int tile = board.nextQuizTile();
+                assertEquals(tile, restored.nextQuizTile());
+                assertTrue(board.guess(tile));
+                assertTrue(restored.guess(tile));
+            }
+            assertFalse(restored.hasHiddenTiles());
+            assertEquals(1, restored.getWrongMoveCount());
+        }
+    }
+
+
+    @Test
+    public void boardNeverHiddenIsRestoredShown() {
+        GameBoard restored = new GameBoard(25, null, 0, GameBoard.NO_TILE, 0, new Random());
+
+        assertFalse(restored.hasHiddenTiles());
+        assertNull(restored.getQuizOrder());
+        for (int i = 0; i < 25; i++) {
+            assertFalse(restored.isHidden(i));
+        }
+    }
+
+
+    @Test
+    public void restoredQuizTileMustBeHidden() {
+        GameBoard board = new GameBoard(9, new Random(6));
+        board.hideAll();
+        int revealed = board.nextQuizTile();
+        board.guess(revealed);
+
+        GameBoard restored = new GameBoard(9, board.getQuizOrder(), board.getQuizPosition(), revealed, 0,
+                new Random());
+
+        assertEquals(GameBoard.NO_TILE, restored.getQuizTile());
+    }
+
+
+    @Test(expected = IllegalArgumentException.class)
+    public void quizOrderOfAnotherSizeIsRejected() {
+        GameBoard board = new GameBoard(9, new Random(7));
+        board.hideAll();
+
+        new GameBoard(16, board.getQuizOrder(), 0, GameBoard.NO_TILE, 0, new Random());
+    }
+
+
+    @Test(expected = IllegalArgumentException.class)
+    public void quizPositionPastTheEndIsRejected() {
+        GameBoard board = new GameBoard(9, new Random(8));
+        board.hideAll();
+
+        new GameBoard(9, board.getQuizOrder(), 10, GameBoard.NO_TILE, 0, new Random());
+    }
+
+
+    // Round trip through the state the game saves
+    private static GameBoard restore(GameBoard board) {
+        return new GameBoard(board.getTileCount(), board.getQuizOrder(), board.getQuizPosition(),
+                board.getQuizTile(), board.getWrongMoveCount(), new Random());
+    }
+}
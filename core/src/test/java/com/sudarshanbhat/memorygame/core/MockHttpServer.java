@@ -0,0 +1,266 @@
+package com.sudarshanbhat.memorygame.core;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Minimal HTTP/1.1 server on a local socket for the client tests. Answers GETs for
+ * paths given a body with setBody(), and any other GET with the enqueued responses in
+ * order. Keeps connections open between requests and records the request headers,
+ * the requests per path and the number of connections accepted.
+ */
+public class MockHttpServer {
+
+    // Enqueued as the code of a request that is read but never answered
+    public static final int NO_RESPONSE = 0;
+
+    private final ServerSocket mServerSocket;
+    private final LinkedBlockingQueue<MockResponse> mResponses = new LinkedBlockingQueue<MockResponse>();
+    private final LinkedBlockingQueue<RecordedRequest> mRequests = new LinkedBlockingQueue<RecordedRequest>();
+    private final ConcurrentHashMap<String, byte[]> mBodies = new ConcurrentHashMap<String, byte[]>();
+    private final ConcurrentHashMap<String, AtomicInteger> mPathCounts = new ConcurrentHashMap<String, AtomicInteger>();
+    private volatile long mResponseDelayMs;
+    private final List<Socket> mSockets = new ArrayList<Socket>();
+    private final AtomicInteger mConnectionCount = new AtomicInteger();
+    private final AtomicInteger mRequestCount = new AtomicInteger();
+
+    public MockHttpServer() throws IOException {
+        mServerSocket = new ServerSocket(0, 50, InetAddress.getByName("127.0.0.1"));
+        Thread acceptThread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                acceptConnections();
+            }
+        }, "MockHttpServer");
+        acceptThread.setDaemon(true);
+        acceptThread.start();
+    }
+
+
+    public String url(String path) {
+        return "http://127.0.0.1:" + mServerSocket.getLocalPort() + path;
+    }
+
+
+    // headers are "Name: value" lines
+    public void enqueue(int code, String body, String... headers) {
+        mResponses.add(new MockResponse(code, toBytes(body), headers));
+    }
+
+
+    // Every GET of path gets a 200 with this body
+    public void setBody(String path, byte[] body) {
+        mBodies.put(path, body);
+    }
+
+
+    // Time the server takes to answer each request, to widen races in the tests
+    public void setResponseDelay(long delayMs) {
+        mResponseDelayMs = delayMs;
+    }
+
+
+    public int getConnectionCount() {
+        return mConnectionCount.get();
+    }
+
+
+    public int getRequestCount() {
+        return mRequestCount.get();
+    }
+
+
+    public int getRequestCount(String path) {
+        AtomicInteger count = mPathCounts.get(path);
+        return count != null ? count.get() : 0;
+    }
+
+
+    // Next request the server read, or null if none came within a second
+    public RecordedRequest takeRequest() throws InterruptedException {
+        return mRequests.poll(1, TimeUnit.SECONDS);
+    }
+
+
+    public void shutdown() {
+        try {
+            mServerSocket.close();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+
+        synchronized (mSockets) {
+            for (Socket socket : mSockets) {
+                closeQuietly(socket);
+            }
+        }
+    }
+
+
+    private void acceptConnections() {
+        while (!mServerSocket.isClosed()) {
+            final Socket socket;
+            try {
+                socket = mServerSocket.accept();
+            } catch (IOException e) {
+                // Closed by shutdown()
+                return;
+            }
+
+            mConnectionCount.incrementAndGet();
+            synchronized (mSockets) {
+                mSockets.add(socket);
+            }
+            Thread connectionThread = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    serveConnection(socket);
+                }
+            }, "MockHttpServer connection");
+            connectionThread.setDaemon(true);
+            connectionThread.start();
+        }
+    }
+
+
+    private void serveConnection(Socket socket) {
+        try {
+            BufferedReader reader = new BufferedReader(new InputStreamReader(socket.getInputStream(), "ISO-8859-1"));
+            OutputStream os = socket.getOutputStream();
+            String requestLine;
+            while ((requestLine = reader.readLine()) != null) {
+                if (requestLine.length() == 0) {
+                    continue;
+                }
+
+                Map<String, String> headers = new HashMap<String, String>();
+                String line;
+                while ((line = reader.readLine()) != null && line.length() > 0) {
+                    int colon = line.indexOf(':');
+                    headers.put(line.substring(0, colon).trim().toLowerCase(), line.substring(colon + 1).trim());
+                }
+                RecordedRequest request = new RecordedRequest(requestLine, headers);
+                mRequestCount.incrementAndGet();
+                mRequests.add(request);
+                AtomicInteger pathCount = mPathCounts.get(request.getPath());
+                if (pathCount == null) {
+                    mPathCounts.putIfAbsent(request.getPath(), new AtomicInteger());
+                    pathCount = mPathCounts.get(request.getPath());
+                }
+                pathCount.incrementAndGet();
+
+                byte[] body = mBodies.get(request.getPath());
+                MockResponse response = body != null ? new MockResponse(200, body) : mResponses.poll();
+                if (response == null) {
+                    response = new MockResponse(404, new byte[0]);
+                }
+                if (mResponseDelayMs > 0) {
+                    try {
+                        Thread.sleep(mResponseDelayMs);
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                }
+                if (response.code == NO_RESPONSE) {
+                    // Leave the client waiting until it gives up
+                    continue;
+                }
+                os.write(response.toBytes());
+                os.flush();
+            }
+        } catch (IOException e) {
+            // Client closed the connection
+        } finally {
+            closeQuietly(socket);
+        }
+    }
+
+
+    private static byte[] toBytes(String s) {
+        try {
+            return s.getBytes("UTF-8");
+        } catch (IOException e) {
+            throw new AssertionError(e);
+        }
+    }
+
+
+    private static void closeQuietly(Socket socket) {
+        try {
+            socket.close();
+        } catch (IOException e) {
+            // Nothing to do
+        }
+    }
+
+
+    /**
+     * Request line and headers of a request the server read. Header names are lower case.
+     */
+    public static class RecordedRequest {
+        public final String requestLine;
+        public final Map<String, String> headers;
+
+        RecordedRequest(String requestLine, Map<String, String> headers) {
+            this.requestLine = requestLine;
+            this.headers = headers;
+        }
+
+        public String getHeader(String name) {
+            return headers.get(name.toLowerCase());
+        }
+
+        public String getPath() {
+            return requestLine.split(" ")[1];
+        }
+    }
+
+
+    private static class MockResponse {
+        final int code;
+        final byte[] body;
+        final String[] headers;
+
+        MockResponse(int code, byte[] body, String... headers) {
+            this.code = code;
+            this.body = body;
+            this.headers = headers;
+        }
+
+        byte[] toBytes() throws IOException {
+            byte[] bodyBytes = body;
+            StringBuilder sb = new StringBuilder();
+            sb.append("HTTP/1.1 ").append(code).append(" Mock\r\n");
+            // 304 has no body, and no length to go with it
+            if (code != 304) {
+                sb.append("Content-Length: ").append(bodyBytes.length).append("\r\n");
+            }
+            for (String header : headers) {
+                sb.append(header).append("\r\n");
+            }
+            sb.append("\r\n");
+
+            byte[] head = sb.toString().getBytes("ISO-8859-1");
+            if (code == 304) {
+                return head;
+            }
+            byte[] bytes = new byte[head.length + bodyBytes.length];
+            System.arraycopy(head, 0, bytes, 0, head.length);
+            System.arraycopy(bodyBytes, 0, bytes, head.length, bodyBytes.length);
+            return bytes;
+        }
+    }
+}
@@ -0,0 +1,201 @@
+package com.sudarshanbhat.memorygame.core;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class PhotoDiskCacheTest {
+
+    private static final int PHOTO_SIZE = 1000;
+    private static final long MAX_SIZE = 100 * PHOTO_SIZE;
+
+    @Rule
+    public TemporaryFolder mFolder = new TemporaryFolder();
+
+    private File mDirectory;
+    private PhotoDiskCache mDiskCache;
+
+    @Before
+    public void setUp() throws IOException {
+        mDirectory = mFolder.newFolder("cache");
+        mDiskCache = open();
+    }
+
+
+    @After
+    public void tearDown() throws IOException {
+        mDiskCache.close();
+    }
+
+
+    @Test
+    public void reopenKeepsCommittedEntries() throws IOException {
+        put("a", 1);
+        put("b", 2);
+        reopen();
+
+        assertEquals(2 * PHOTO_SIZE, mDiskCache.size());
+        assertNotNull(mDiskCache.get("a"));
+        assertNotNull(mDiskCache.get("b"));
+    }
+
+
+    @Test
+    public void putCutAfterSizeIsSkipped() throws IOException {
+        put("a", 1);
+        put("b", 2);
+        mDiskCache.close();
+        // Died after moving c into place, half way through its journal line
+        writeFile(mDiskCache.getFile("c"), photo(3));
+        appendJournal("PUT c " + PHOTO_SIZE);
+
+        mDiskCache = open();
+        assertEquals(2 * PHOTO_SIZE, mDiskCache.size());
+        assertNotNull(mDiskCache.get("a"));
+        assertNotNull(mDiskCache.get("b"));
+        assertNull(mDiskCache.get("c"));
+        assertFalse("Untracked file is deleted", mDiskCache.getFile("c").exists());
+    }
+
+
+    @Test
+    public void lineWithoutNewlineIsSkipped() throws IOException {
+        put("a", 1);
+        mDiskCache.close();
+        // Every field is there, but the checksum may be missing digits
+        writeFile(mDiskCache.getFile("c"), photo(3));
+        appendJournal("PUT c " + PHOTO_SIZE + " 12");
+
+        mDiskCache = open();
+        assertEquals(PHOTO_SIZE, mDiskCache.size());
+        assertNull(mDiskCache.get("c"));
+    }
+
+
+    @Test
+    public void cutReadAndRemoveLinesAreSkipped() throws IOException {
+        put("a", 1);
+        mDiskCache.close();
+        appendJournal("READ\nREMOVE\nREM");
+
+        mDiskCache = open();
+        assertEquals(PHOTO_SIZE, mDiskCache.size());
+        assertNotNull(mDiskCache.get("a"));
+    }
+
+
+    @Test
+    public void journalIsRewrittenWithoutTheCutLine() throws IOException {
+        put("a", 1);
+        mDiskCache.close();
+        appendJournal("PUT c " + PHOTO_SIZE);
+
+        // Operations after the reopen must not end up on the cut line
+        mDiskCache = open();
+        put("b", 2);
+        reopen();
+
+        assertEquals(2 * PHOTO_SIZE, mDiskCache.size());
+        assertNotNull(mDiskCache.get("a"));
+        assertNotNull(mDiskCache.get("b"));
+    }
+
+
+    @Test
+    public void unknownOperationDropsTheCache() throws IOException {
+        put("a", 1);
+        mDiskCache.close();
+        appendJournal("MOVE a b\n");
+
+        mDiskCache = open();
+        assertEquals(0, mDiskCache.size());
+        assertFalse(mDiskCache.getFile("a").exists());
+    }
+
+
+    @Test
+    public void leastRecentlyUsedIsEvictedFirst() throws IOException {
+        mDiskCache.setMaxSize(2 * PHOTO_SIZE);
+        put("a", 1);
+        put("b", 2);
+        assertNotNull(mDiskCache.get("a"));
+        put("c", 3);
+
+        assertTrue(mDiskCache.contains("a"));
+        assertFalse(mDiskCache.contains("b"));
+        assertTrue(mDiskCache.contains("c"));
+        assertFalse(mDiskCache.getFile("b").exists());
+    }
+
+
+    @Test
+    public void verifyDropsCorruptEntry() throws IOException {
+        put("a", 1);
+        byte[] data = photo(1);
+        data[10]++;
+
+        assertFalse(mDiskCache.verify("a", data, data.length));
+        assertFalse(mDiskCache.contains("a"));
+    }
+
+
+    private PhotoDiskCache open() throws IOException {
+        PhotoDiskCache diskCache = new PhotoDiskCache(mDirectory, MAX_SIZE);
+        diskCache.open();
+        return diskCache;
+    }
+
+
+    private void reopen() throws IOException {
+        mDiskCache.close();
+        mDiskCache = open();
+    }
+
+
+    private void put(String key, int seed) throws IOException {
+        writeFile(mDiskCache.getTempFile(key), photo(seed));
+        assertTrue(mDiskCache.commit(key, PHOTO_SIZE));
+    }
+
+
+    private void appendJournal(String text) throws IOException {
+        OutputStream os = new FileOutputStream(new File(mDirectory, PhotoDiskCache.JOURNAL_FILE), true);
+        try {
+            os.write(text.getBytes("UTF-8"));
+        } finally {
+            os.close();
+        }
+    }
+
+
+    private static void writeFile(File file, byte[] data) throws IOException {
+        OutputStream os = new FileOutputStream(file);
+        try {
+            os.write(data);
+        } finally {
+            os.close();
+        }
+    }
+
+
+    private static byte[] photo(int seed) {
+        byte[] data = new byte[PHOTO_SIZE];
+        for (int i = 0; i < data.length; i++) {
+            data[i] = (byte) (i * 31 + seed);
+        }
+        return data;
+    }
+}
@@ -0,0 +1,135 @@
+package com.sudarshanbhat.memorygame.core;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class SingleFlightTest {
+
+    @Test
+    public void waitersShareTheOwnersResult() throws Exception {
+        final AtomicInteger runs = new AtomicInteger();
+        // The task finishes once the other three callers wait for it
+        final CountDownLatch waiting = new CountDownLatch(3);
+        final SingleFlight<String> flight = new SingleFlight<String>(new SingleFlight.Owners() {
+            @Override
+            public Object currentOwner() {
+                return null;
+            }
+
+            @Override
+            public void onWait(Object owner) {
+                waiting.countDown();
+            }
+        });
+        ExecutorService threads = Executors.newFixedThreadPool(4);
+        try {
+            List<Future<String>> results = new ArrayList<Future<String>>();
+            for (int i = 0; i < 4; i++) {
+                results.add(threads.submit(new Callable<String>() {
+                    @Override
+                    public String call() {
+                        return flight.run("key", new Callable<String>() {
+                            @Override
+                            public String call() throws Exception {
+                                runs.incrementAndGet();
+                                waiting.await();
+                                return "value";
+                            }
+                        });
+                    }
+                }));
+            }
+
+            for (Future<String> result : results) {
+                assertEquals("value", result.get(5, TimeUnit.SECONDS));
+            }
+            assertEquals(1, runs.get());
+        } finally {
+            threads.shutdownNow();
+        }
+    }
+
+
+    @Test
+    public void waiterIsToldWhoRunsTheTask() throws Exception {
+        final List<Object> waitedFor = Collections.synchronizedList(new ArrayList<Object>());
+        final SingleFlight<String> flight = new SingleFlight<String>(new SingleFlight.Owners() {
+            @Override
+            public Object currentOwner() {
+                return Thread.currentThread().getName();
+            }
+
+            @Override
+            public void onWait(Object owner) {
+                waitedFor.add(owner);
+            }
+        });
+
+        final CountDownLatch started = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+        Thread owner = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                flight.run("key", new Callable<String>() {
+                    @Override
+                    public String call() throws Exception {
+                        started.countDown();
+                        release.await();
+                        return "value";
+                    }
+                });
+            }
+        }, "owner");
+        owner.start();
+        assertTrue(started.await(5, TimeUnit.SECONDS));
+
+        Thread waiter = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                flight.run("key", new Callable<String>() {
+                    @Override
+                    public String call() {
+                        throw new AssertionError("Waiter ran its own task");
+                    }
+                });
+            }
+        }, "waiter");
+        waiter.start();
+        while (waitedFor.isEmpty() && waiter.isAlive()) {
+            Thread.sleep(10);
+        }
+        release.countDown();
+        owner.join(5000);
+        waiter.join(5000);
+
+        assertEquals(Collections.singletonList((Object) "owner"), waitedFor);
+    }
+
+
+    @Test
+    public void failedTaskReturnsNull() {
+        SingleFlight<String> flight = new SingleFlight<String>();
+
+        String result = flight.run("key", new Callable<String>() {
+            @Override
+            public String call() throws Exception {
+                throw new Exception("Expected by the test");
+            }
+        });
+
+        assertEquals(null, result);
+    }
+}
@@ -0,0 +1,126 @@
+package com.sudarshanbhat.memorygame.core;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+public class SizedLruCacheTest {
+
+    @Test
+    public void leastRecentlyUsedIsEvictedFirst() {
+        RecordingCache cache = new RecordingCache(3);
+        cache.put("a", "A");
+        cache.put("b", "B");
+        cache.put("c", "C");
+        cache.get("a");
+        cache.put("d", "D");
+
+        assertNull(cache.get("b"));
+        assertEquals(Arrays.asList("b"), cache.evicted);
+        assertEquals(Arrays.asList("c", "a", "d"), new ArrayList<String>(cache.snapshot().keySet()));
+    }
+
+
+    @Test
+    public void readsAfterAPutOrderAfterIt() {
+        RecordingCache cache = new RecordingCache(3);
+        cache.put("a", "A");
+        cache.put("b", "B");
+        cache.get("a");
+        cache.put("c", "C");
+        cache.get("b");
+        cache.put("d", "D");
+        cache.put("e", "E");
+
+        assertEquals(Arrays.asList("a", "c"), cache.evicted);
+    }
+
+
+    @Test
+    public void sizeIsSumOfEntrySizes() {
+        RecordingCache cache = new RecordingCache(10);
+        cache.put("a", "AAAA");
+        cache.put("b", "BBB");
+        cache.put("a", "AA");
+        assertEquals(5, cache.size());
+
+        cache.put("c", "CCCCCCC");
+        assertEquals(Arrays.asList("b"), cache.evicted);
+        assertEquals(9, cache.size());
+
+        cache.remove("a");
+        assertEquals(7, cache.size());
+        assertEquals("Removed and replaced entries are not evictions", 1, cache.evictionCount());
+    }
+
+
+    @Test
+    public void evictAllEvictsInRecencyOrder() {
+        RecordingCache cache = new RecordingCache(4);
+        cache.put("a", "A");
+        cache.put("b", "B");
+        cache.put("c", "C");
+        cache.get("b");
+        cache.put("d", "D");
+        cache.get("a");
+        cache.evictAll();
+
+        assertEquals(Arrays.asList("c", "b", "d", "a"), cache.evicted);
+        assertEquals(0, cache.size());
+    }
+
+
+    @Test
+    public void hitsAndMissesAreCounted() {
+        RecordingCache cache = new RecordingCache(3);
+        cache.put("a", "A");
+        cache.get("a");
+        cache.get("a");
+        cache.get("b");
+
+        assertEquals(2, cache.hitCount());
+        assertEquals(1, cache.missCount());
+    }
+
+
+    @Test
+    public void peekDoesNotCountOrTouch() {
+        RecordingCache cache = new RecordingCache(2);
+        cache.put("a", "A");
+        cache.put("b", "B");
+        assertEquals("A", cache.peek("a"));
+        assertNull(cache.peek("c"));
+        cache.put("c", "C");
+
+        assertEquals(Arrays.asList("a"), cache.evicted);
+        assertEquals(0, cache.hitCount());
+        assertEquals(0, cache.missCount());
+    }
+
+
+    // Sized by string length, records the keys of evicted entries
+    private static class RecordingCache extends SizedLruCache<String, String> {
+        final List<String> evicted = new ArrayList<String>();
+
+        RecordingCache(int maxSize) {
+            super(maxSize);
+        }
+
+        @Override
+        protected int sizeOf(String key, String value) {
+            return value.length();
+        }
+
+        @Override
+        protected void entryRemoved(boolean evicted, String key, String oldValue, String newValue) {
+            if (evicted) {
+                this.evicted.add(key);
+            }
+        }
+    }
+}